@@ -26,7 +26,6 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -168,13 +167,14 @@ public class AtlasIdentityProvider implements Atlas.ParticipantProvider {
             entity.setContentType("application/json");
             post.setEntity(entity);
             
-            HttpResponse response = (new DefaultHttpClient()).execute(post);
+            HttpResponse response = Atlas.Tools.getHttpClient().execute(post);
             if (HttpStatus.SC_OK != response.getStatusLine().getStatusCode() && HttpStatus.SC_CREATED != response.getStatusLine().getStatusCode()) {
                 StringBuilder sb = new StringBuilder();
                 sb.append("Got status ").append(response.getStatusLine().getStatusCode()).append(" [").append(response.getStatusLine())
                     .append("] when logging in. Request: ").append(url);
                 if (requestIdentityToken) sb.append(" login: ").append(userName).append(", nonce: ").append(nonce);
                 Log.e(TAG, sb.toString());
+                Atlas.Tools.consumeQuietly(response);
                 return new String[] {null, sb.toString()};
             }
 
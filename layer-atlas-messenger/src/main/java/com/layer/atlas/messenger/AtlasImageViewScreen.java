@@ -17,7 +17,6 @@ package com.layer.atlas.messenger;
 
 import android.app.Activity;
 import android.graphics.Bitmap;
-import android.graphics.Movie;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
@@ -28,11 +27,13 @@ import android.view.View.OnClickListener;
 import android.widget.CheckBox;
 
 import com.layer.atlas.Atlas;
+import com.layer.atlas.Atlas.ImageLoader;
 import com.layer.atlas.Atlas.ImageLoader.ImageSpec;
 import com.layer.atlas.Atlas.Tools;
 import com.layer.atlas.AtlasImageView2;
 import com.layer.atlas.AtlasProgressView;
 import com.layer.atlas.GIFDrawable;
+import com.layer.atlas.GIFImage;
 import com.layer.atlas.cells.ImageCell;
 import com.layer.sdk.listeners.LayerProgressListener;
 import com.layer.sdk.messaging.MessagePart;
@@ -54,6 +55,9 @@ public class AtlasImageViewScreen extends Activity implements Atlas.ImageLoader.
     private ImageCell cell;
     private Drawable previewDrawable;
     private Drawable fullDrawable;
+    /** images bigger than memory cache are delivered only through their specs */
+    private ImageSpec previewSpec;
+    private ImageSpec fullSpec;
     
     private long downloadBytesPreview = -1;
     private long downloadBytesFull = -1;
@@ -126,11 +130,18 @@ public class AtlasImageViewScreen extends Activity implements Atlas.ImageLoader.
         
         // prepare drawables
         if (fullDrawable == null) {
-            // build fullDrawable
-            Object image = Atlas.imageLoader.getImageFromCache(cell.fullPart.getId());
+            DisplayMetrics dm = new DisplayMetrics();
+            this.getWindowManager().getDefaultDisplay().getMetrics(dm);
+            
+            final int requiredWidth  = imageViewer.getWidth()  != 0 ? imageViewer.getWidth()  : dm.widthPixels;
+            final int requiredHeight = imageViewer.getHeight() != 0 ? imageViewer.getHeight() : dm.heightPixels;
+            
+            // build fullDrawable. List thumbnail of the same part is not good enough, neither is RGB_565 one
+            Object image = Atlas.imageLoader.getImageFromCache(cell.fullPart.getId(), requiredWidth, requiredHeight, Bitmap.Config.ARGB_8888);
+            if (image == null && fullSpec != null) image = fullSpec.image;
             if (image != null) {
                 if (Atlas.MIME_TYPE_IMAGE_GIF.equals(cell.messagePart.getMimeType())) {
-                    fullDrawable = new GIFDrawable((Movie)image);
+                    fullDrawable = new GIFDrawable((GIFImage) image);
                 } else {
                     Bitmap fullBmp = (Bitmap) image;
                     fullDrawable = new BitmapDrawable(fullBmp);
@@ -140,28 +151,25 @@ public class AtlasImageViewScreen extends Activity implements Atlas.ImageLoader.
                     }
                 }
             } else {
-                DisplayMetrics dm = new DisplayMetrics();
-                this.getWindowManager().getDefaultDisplay().getMetrics(dm);
-                
-                final int requiredWidth  = imageViewer.getWidth()  != 0 ? imageViewer.getWidth()  : dm.widthPixels;
-                final int requiredHeight = imageViewer.getHeight() != 0 ? imageViewer.getHeight() : dm.heightPixels;
-
                 if (Atlas.MIME_TYPE_IMAGE_GIF.equals(cell.messagePart.getMimeType())) {
-                    Atlas.imageLoader.requestImage(cell.fullPart.getId(), new Atlas.MessagePartBufferedStreamProvider(cell.fullPart)
-                        , requiredWidth, requiredHeight, true, this);
+                    fullSpec = Atlas.imageLoader.requestImage(cell.fullPart.getId(), new Atlas.MessagePartBufferedStreamProvider(cell.fullPart)
+                        , requiredWidth, requiredHeight, true, ImageLoader.PRIORITY_FULL_SCREEN, this);
                 } else {
-                    Atlas.imageLoader.requestImage(cell.fullPart.getId(), new Atlas.MessagePartStreamProvider(cell.fullPart)
-                        , requiredWidth, requiredHeight, false, this);
+                    // full quality when zoomed, RGB_565 is for thumbnails 
+                    fullSpec = Atlas.imageLoader.requestImage(cell.fullPart.getId(), new Atlas.MessagePartStreamProvider(cell.fullPart, Bitmap.Config.ARGB_8888)
+                        , requiredWidth, requiredHeight, false, ImageLoader.PRIORITY_FULL_SCREEN, this);
                 }
             }
         }
         
         if (previewDrawable == null && cell.previewPart != null) {
             Bitmap previewBmp = (Bitmap) Atlas.imageLoader.getImageFromCache(cell.previewPart.getId());
+            if (previewBmp == null && previewSpec != null) previewBmp = (Bitmap) previewSpec.image;
             if (previewBmp != null) {
                 previewDrawable = new BitmapDrawable(previewBmp);
             } else { 
-                Atlas.imageLoader.requestImage(cell.previewPart.getId(), new Atlas.MessagePartStreamProvider(cell.previewPart), this);
+                previewSpec = Atlas.imageLoader.requestImage(cell.previewPart.getId(), new Atlas.MessagePartStreamProvider(cell.previewPart)
+                        , 0, 0, false, ImageLoader.PRIORITY_FULL_SCREEN, this);
             }
         }
         
@@ -231,6 +239,7 @@ public class AtlasImageViewScreen extends Activity implements Atlas.ImageLoader.
         if (debug) Log.w(TAG, "onProgressComplete() part: " + part.getId() + ", size: " + part.getSize() + ", in: " + secSpent
                 + "s, speed: " + (0.001f * part.getSize() / secSpent) + "kbs");
 
+        Atlas.imageLoader.onContentReady(part.getId());
         runOnUiThread(UPDATE_VALUES_RUNNABLE);
     }
 
@@ -66,6 +66,8 @@ public class MessengerApp extends Application {
             this.appId = loadAppId(); 
         }
         this.identityProvider = new AtlasIdentityProvider(this);
+        Atlas.imageLoader.setMemoryBudget(this, 0.25f);
+        Atlas.imageLoader.setDiskCache(this, 32 * 1024 * 1024);
     }
 
     public LayerClient getLayerClient() {
@@ -16,10 +16,13 @@
 package com.layer.atlas;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -28,32 +31,73 @@ import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.app.ActivityManager;
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Movie;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.TypedValue;
@@ -259,6 +303,22 @@ public class Atlas {
         public static final SimpleDateFormat sdfDayOfWeek = new SimpleDateFormat("EEE, LLL dd,");
         public static final BitmapDrawable EMPTY_DRAWABLE = new BitmapDrawable(Bitmap.createBitmap(new int[] { Color.TRANSPARENT }, 1, 1, Bitmap.Config.ALPHA_8));
         
+        public static final int HTTP_CONNECT_TIMEOUT_MS = 15 * 1000;
+        public static final int HTTP_READ_TIMEOUT_MS = 30 * 1000;
+        /** idle connection is kept this long unless server asks for less with <code>Keep-Alive: timeout</code> */
+        public static final int HTTP_KEEP_ALIVE_MS = 30 * 1000;
+        /** enough for {@link DownloadQueue#DEFAULT_MAX_DOWNLOADS} plus identity and other requests */
+        public static final int HTTP_MAX_CONNECTIONS = 8;
+        public static final int HTTP_MAX_CONNECTIONS_PER_HOST = 4;
+        
+        /** partially downloaded file, see {@link #downloadHttpToFile(String, File)} */
+        public static final String DOWNLOAD_TEMP_SUFFIX = ".tmp";
+        /** <code>ETag</code> or <code>Last-Modified</code> partially downloaded file could be resumed with */
+        public static final String DOWNLOAD_VALIDATOR_SUFFIX = ".tmp.validator";
+        
+        /** see {@link #getHttpClient()} */
+        private static HttpClient httpClient;
+        
         public static String toString(Message msg) {
             StringBuilder sb = new StringBuilder();
             for (int i = 0; i < msg.getMessageParts().size(); i++) {
@@ -404,40 +464,204 @@ public class Atlas {
             return toStringSpec(widthSpec) + "|" + toStringSpec(heightSpec);
         }
 
-        public static boolean downloadHttpToFile(String url, File file) {
-            HttpGet get = new HttpGet(url);
-            HttpResponse response;
+        /**
+         * HttpClient shared by Atlas components. Connections are pooled and kept alive, so repeated 
+         * requests to the same host skip TCP and TLS handshakes. Responses are requested gzipped and 
+         * unzipped transparently. Consume or abort every response, otherwise its connection is not 
+         * returned to the pool
+         */
+        public static synchronized HttpClient getHttpClient() {
+            if (httpClient == null) httpClient = createHttpClient();
+            return httpClient;
+        }
+        
+        /** 
+         * Replaces shared HttpClient, i.e. with one talking to a local server in tests. 
+         * <b>null</b> restores default one. Previous client is shut down if it's the default one
+         */
+        public static synchronized void setHttpClient(HttpClient client) {
+            if (httpClient != null && httpClient != client && httpClient instanceof PooledHttpClient) {
+                httpClient.getConnectionManager().shutdown();
+            }
+            httpClient = client;
+        }
+        
+        private static HttpClient createHttpClient() {
+            HttpParams params = new BasicHttpParams();
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+            HttpConnectionParams.setConnectionTimeout(params, HTTP_CONNECT_TIMEOUT_MS);
+            HttpConnectionParams.setSoTimeout(params, HTTP_READ_TIMEOUT_MS);
+            HttpConnectionParams.setSocketBufferSize(params, 8 * 1024);
+            ConnManagerParams.setMaxTotalConnections(params, HTTP_MAX_CONNECTIONS);
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(HTTP_MAX_CONNECTIONS_PER_HOST));
+            ConnManagerParams.setTimeout(params, HTTP_CONNECT_TIMEOUT_MS);    // waiting for a free pooled connection
+            
+            SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+            return new PooledHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+        }
+        
+        /** DefaultHttpClient with keep-alive and gzip support. See {@link Tools#getHttpClient()} */
+        private static class PooledHttpClient extends DefaultHttpClient {
+            public PooledHttpClient(ClientConnectionManager connectionManager, HttpParams params) {
+                super(connectionManager, params);
+                setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                        HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+                        while (it.hasNext()) {
+                            HeaderElement element = it.nextElement();
+                            if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                                try {
+                                    return Long.parseLong(element.getValue()) * 1000;
+                                } catch (NumberFormatException ignored) {}
+                            }
+                        }
+                        return HTTP_KEEP_ALIVE_MS;
+                    }
+                });
+                addRequestInterceptor(new HttpRequestInterceptor() {
+                    public void process(HttpRequest request, HttpContext context) {
+                        if (!request.containsHeader("Accept-Encoding")) request.addHeader("Accept-Encoding", "gzip");
+                    }
+                });
+                addResponseInterceptor(new HttpResponseInterceptor() {
+                    public void process(HttpResponse response, HttpContext context) {
+                        HttpEntity entity = response.getEntity();
+                        if (entity == null || entity.getContentEncoding() == null) return;
+                        if ("gzip".equalsIgnoreCase(entity.getContentEncoding().getValue())) {
+                            response.setEntity(new GzipEntity(entity));
+                        }
+                    }
+                });
+            }
+        }
+        
+        /** Unzips wrapped entity. Content length is unknown */
+        private static class GzipEntity extends HttpEntityWrapper {
+            public GzipEntity(HttpEntity wrapped) {
+                super(wrapped);
+            }
+            public InputStream getContent() throws IOException {
+                return new GZIPInputStream(wrappedEntity.getContent());
+            }
+            public long getContentLength() {
+                return -1;
+            }
+        }
+        
+        /** Reads the rest of response, so its connection can be reused */
+        public static void consumeQuietly(HttpResponse response) {
+            if (response == null || response.getEntity() == null) return;
             try {
-                response = (new DefaultHttpClient()).execute(get);
-                if (HttpStatus.SC_OK != response.getStatusLine().getStatusCode()) {
-                    Log.e(TAG, String.format("Expected status 200, but got %d", response.getStatusLine().getStatusCode()));
-                    return false;
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "downloadToFile() cannot execute http request: " + url, e);
-                return false;
+                response.getEntity().consumeContent();
+            } catch (IOException e) {
+                if (debug) Log.w(TAG, "consumeQuietly() cannot consume response: " + response.getStatusLine(), e);
             }
+        }
+        
+        /**
+         * Downloads url into file. Bytes go to <code>file.tmp</code> first, renamed when complete. 
+         * <p>
+         * Interrupted download is resumed by the next call: partial file is kept along with server's 
+         * <code>ETag</code> or <code>Last-Modified</code> and only remaining bytes are requested with 
+         * <code>Range</code>. <code>If-Range</code> makes server send the whole file if it has changed 
+         * meanwhile. Responses without validators are always downloaded from the beginning 
+         * 
+         * @return true if file is downloaded completely
+         */
+        public static boolean downloadHttpToFile(String url, File file) {
+            return downloadHttpToFile(new HttpGet(url), file);
+        }
         
+        /** 
+         * Same as {@link #downloadHttpToFile(String, File)}, but request could be aborted from another thread. 
+         * Aborted download is kept to be resumed 
+         */
+        public static boolean downloadHttpToFile(HttpGet get, File file) {
+            String url = get.getURI().toString();
             File dir = file.getParentFile();
             if (!dir.exists() && !dir.mkdirs()) {
                 Log.e(TAG, String.format("Could not create directories for `%s`", dir.getAbsolutePath()));
                 return false;
             }
             
-            File tempFile = new File(file.getAbsolutePath() + ".tmp");
+            File tempFile = new File(file.getAbsolutePath() + DOWNLOAD_TEMP_SUFFIX);
+            File validatorFile = new File(file.getAbsolutePath() + DOWNLOAD_VALIDATOR_SUFFIX);
+            String validator = tempFile.length() > 0 ? readValidator(validatorFile) : null;
+            long offset = validator != null ? tempFile.length() : 0;
             
+            get.setHeader("Accept-Encoding", "identity");   // ranges of gzipped content cannot be glued together
+            if (offset > 0) {
+                get.setHeader("Range", "bytes=" + offset + "-");
+                get.setHeader("If-Range", validator);
+            }
+            HttpResponse response;
+            HttpEntity entity;
+            long expectedLength;
             try {
-                streamCopyAndClose(response.getEntity().getContent(), new FileOutputStream(tempFile, false));
-                response.getEntity().consumeContent();
+                response = getHttpClient().execute(get);
+                int status = response.getStatusLine().getStatusCode();
+                entity = response.getEntity();
+                if (entity == null && (status == HttpStatus.SC_OK || status == HttpStatus.SC_PARTIAL_CONTENT)) {
+                    Log.e(TAG, "downloadToFile() no content with status " + status + ", url: " + url);
+                    return false;   // failed attempt, partial file is kept for retry
+                }
+                long contentLength = entity != null ? entity.getContentLength() : -1;
+                if (status == HttpStatus.SC_PARTIAL_CONTENT && offset > 0) {
+                    long[] range = parseContentRange(response);
+                    if (range == null || range[0] != offset) {
+                        Log.e(TAG, "downloadToFile() unexpected range: " + response.getFirstHeader("Content-Range") + " for offset: " + offset + ", url: " + url);
+                        get.abort();
+                        deletePartialDownload(tempFile, validatorFile);
+                        return false;
+                    }
+                    expectedLength = range[1] >= 0 ? range[1] : contentLength >= 0 ? offset + contentLength : -1;
+                    if (debug) Log.w(TAG, "downloadToFile() resuming from " + offset + " of " + expectedLength + ": " + url);
+                } else if (status == HttpStatus.SC_OK) {
+                    offset = 0;     // file has changed or server doesn't support ranges
+                    expectedLength = contentLength;
+                    validator = validatorOf(response);
+                    if (validator != null) {
+                        writeValidator(validatorFile, validator);
+                    } else {
+                        validatorFile.delete();
+                    }
+                } else {
+                    Log.e(TAG, String.format("Expected status 200, but got %d", status));
+                    if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) deletePartialDownload(tempFile, validatorFile);
+                    consumeQuietly(response);
+                    return false;
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "downloadToFile() cannot execute http request: " + url, e);
+                get.abort();
+                return false;
+            }
+            
+            boolean complete = false;
+            OutputStream os = null;
+            try {
+                os = new FileOutputStream(tempFile, offset > 0);
+                streamCopy(entity.getContent(), os);
+                entity.consumeContent();
+                complete = true;
             } catch (IOException e) {
                 if (debug) Log.e(TAG, "downloadToFile() cannot extract content from http response: " + url, e);
+                get.abort();    // connection is broken, don't return it to the pool
+            } finally {
+                closeQuietly(os);
             }
-        
-            if (tempFile.length() != response.getEntity().getContentLength()) {
-                tempFile.delete();
-                Log.e(TAG, String.format("downloadToFile() File size mismatch for `%s` (%d vs %d)", tempFile.getAbsolutePath(), tempFile.length(), response.getEntity().getContentLength()));
+            
+            if (!complete || (expectedLength >= 0 && tempFile.length() != expectedLength)) {
+                // keep what is downloaded if it can be resumed
+                if (validator == null || (expectedLength >= 0 && tempFile.length() > expectedLength)) deletePartialDownload(tempFile, validatorFile);
+                Log.e(TAG, String.format("downloadToFile() %s for `%s` (%d vs %d)", complete ? "File size mismatch" : "Interrupted"
+                        , tempFile.getAbsolutePath(), tempFile.length(), expectedLength));
                 return false;
             }
+            validatorFile.delete();
             
             // last step
             if (tempFile.renameTo(file)) {
@@ -450,6 +674,62 @@ public class Atlas {
             
         }
         
+        /** @return strong <code>ETag</code> or <code>Last-Modified</code> suitable for <code>If-Range</code>, or null */
+        private static String validatorOf(HttpResponse response) {
+            Header etag = response.getFirstHeader("ETag");
+            if (etag != null && !etag.getValue().startsWith("W/")) return etag.getValue();   // weak tags can't be used in If-Range 
+            Header lastModified = response.getFirstHeader("Last-Modified");
+            return lastModified != null ? lastModified.getValue() : null;
+        }
+        
+        /** @return {first byte, total length or -1 if unknown} from <code>Content-Range</code>, or null if it's missing or malformed */
+        private static long[] parseContentRange(HttpResponse response) {
+            Header header = response.getFirstHeader("Content-Range");
+            if (header == null) return null;
+            String value = header.getValue().trim();
+            int dash = value.indexOf('-');
+            int slash = value.indexOf('/');
+            if (!value.startsWith("bytes ") || dash < 0 || slash < dash) return null;
+            try {
+                long first = Long.parseLong(value.substring("bytes ".length(), dash).trim());
+                String total = value.substring(slash + 1).trim();
+                return new long[] { first, "*".equals(total) ? -1 : Long.parseLong(total) };
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        
+        private static String readValidator(File validatorFile) {
+            if (!validatorFile.exists()) return null;
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                streamCopyAndClose(new FileInputStream(validatorFile), bytes);
+                String validator = new String(bytes.toByteArray(), "UTF-8").trim();
+                return validator.length() > 0 ? validator : null;
+            } catch (IOException e) {
+                if (debug) Log.w(TAG, "readValidator() cannot read: " + validatorFile, e);
+                return null;
+            }
+        }
+        
+        private static void writeValidator(File validatorFile, String validator) {
+            OutputStream os = null;
+            try {
+                os = new FileOutputStream(validatorFile, false);
+                os.write(validator.getBytes("UTF-8"));
+            } catch (IOException e) {
+                Log.e(TAG, "writeValidator() cannot write: " + validatorFile, e);
+                validatorFile.delete();     // download won't be resumable, but not broken
+            } finally {
+                closeQuietly(os);
+            }
+        }
+        
+        private static void deletePartialDownload(File tempFile, File validatorFile) {
+            tempFile.delete();
+            validatorFile.delete();
+        }
+        
         /** 
          * @param dumpPathPrefix - final path is constructed as <code>dumpPathPrefix + path from partId</code> 
          */
@@ -610,9 +890,6 @@ public class Atlas {
      * TODO: 
      * 
      * - imageCache should accept any "Downloader" that download something with progress 
-     * - imageCache should reschedule image if decoding failed
-     * - imageCache should reschedule image if decoded width was cut due to OOM (-> sampleSize > 1) 
-     * - maximum retries should be configurable
      * 
      */
     public static class ImageLoader {
@@ -620,139 +897,584 @@ public class Atlas {
         private static final boolean debug = false;
         
         private static final int BITMAP_DECODE_RETRIES = 10;
-        private static final double MEMORY_THRESHOLD = 0.7;
+        /** every OutOfMemoryError doubles sampleSize, so 4 retries go down to 1/16 of required size */
+        private static final int OUT_OF_MEMORY_RETRIES = 4;
+        private static final long RETRY_BACKOFF_MS = 50;
+        private static final long RETRY_BACKOFF_MAX_MS = 3200;
+        /** degraded images remembered to be decoded again when memory allows */
+        private static final int MAX_DEGRADED = 32;
+        /** upgrade attempts per image, if they keep failing with OutOfMemoryError */
+        private static final int MAX_UPGRADES = 2;
+        /** used until {@link #setMemoryBudget(Context, float)} is called */
+        private static final long DEFAULT_MEMORY_CACHE_BYTES = Runtime.getRuntime().maxMemory() / 8;
+        private static final int DISK_CACHE_JPEG_QUALITY = 90;
+        /** bytes kept to rewind stream after bounds are decoded. Enough for JPEG with EXIF thumbnail */
+        private static final int HEADER_PROBE_LIMIT = 128 * 1024;
+        
+        /** Low priority work, i.e. images that are not on screen yet */
+        public static final int PRIORITY_PREFETCH = 0;
+        /** Default priority. Images displayed in list cells */
+        public static final int PRIORITY_VISIBLE = 1;
+        /** Images displayed full-screen. Decoded before anything else */
+        public static final int PRIORITY_FULL_SCREEN = 2;
+        
+        /** image was cached already for the same or bigger size, see {@link MetricsListener#onDecoded} */
+        public static final int SOURCE_MEMORY = 0;
+        /** image was downscaled from bigger variant in {@link MemoryCache} */
+        public static final int SOURCE_SCALED = 1;
+        /** image was decoded from {@link DiskCache} */
+        public static final int SOURCE_DISK = 2;
+        /** image was decoded from stream of {@link InputStreamProvider} */
+        public static final int SOURCE_ORIGINAL = 3;
+        
+        /** leave one core for UI thread, but don't spawn too many decoders: each holds a full-size bitmap while decoding */
+        private static final int DEFAULT_DECODERS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
         
         private volatile boolean shutdownLoader = false;
-        private final Thread processingThread;
+        private final ArrayList<Decoder> decoders = new ArrayList<Decoder>();
+        private int decodersCount = 0;
         private final Object lock = new Object();
-        private final ArrayList<ImageSpec> queue = new ArrayList<ImageSpec>();
-        
-        /** image_id -> Bitmap | Movie */
-        private LinkedHashMap<Object, Object> cache = new LinkedHashMap<Object, Object>(40, 1f, true) {
-            private static final long serialVersionUID = 1L;
-            protected boolean removeEldestEntry(Entry<Object, Object> eldest) {
-                // calculate available memory
-                long maxMemory = Runtime.getRuntime().maxMemory();
-                long usedMemory = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
-                boolean cleaningRequired = 1.0 * usedMemory / maxMemory > MEMORY_THRESHOLD; 
-                
-                final Object id = eldest.getKey();
-                if (cleaningRequired) if (debug) Log.w(TAG, "removeEldestEntry() cleaning bitmap for: " + id + ", size: " + cache.size() + ", queue: " + queue.size());
-                else                  if (debug) Log.w(TAG, "removeEldestEntry() " + " nothing, size: " + cache.size() + ", queue: " + queue.size());                    
-    
-                return cleaningRequired;
+        /** specs ready to be decoded, most important first */
+        private final RequestQueue queue = new RequestQueue();
+        /** specs with content still downloading. Promoted to queue by {@link #onContentReady(Object)} */
+        private final LinkedHashSet<ImageSpec> waiting = new LinkedHashSet<ImageSpec>();
+        /** image_id -> spec for every image queued or being decoded. Same image is never decoded twice */
+        private final HashMap<Object, ImageSpec> pending = new HashMap<Object, ImageSpec>();
+        /** list is flinging, only {@link #PRIORITY_FULL_SCREEN} images are decoded. See {@link #setPaused(boolean)} */
+        private boolean paused = false;
+        /** failed specs waiting for {@link ImageSpec#notBefore} to be retried */
+        private final LinkedHashSet<ImageSpec> delayed = new LinkedHashSet<ImageSpec>();
+        /** image_id -> spec delivered with lower resolution because of OutOfMemoryError. Eldest first */
+        private final LinkedHashMap<Object, ImageSpec> degraded = new LinkedHashMap<Object, ImageSpec>();
+        /** decoded specs waiting for {@link #dispatchCompleted()} to notify their listeners */
+        private final LinkedHashSet<ImageSpec> completed = new LinkedHashSet<ImageSpec>();
+        private final Handler mainHandler = new Handler(Looper.getMainLooper());
+        private final Runnable dispatchCompleted = new Runnable() {
+            public void run() {
+                dispatchCompleted();
             }
         };
+        
+        /** see {@link #setRetryPolicy(int, int, long, long)} */
+        private volatile int maxRetries = BITMAP_DECODE_RETRIES;
+        private volatile int maxOutOfMemoryRetries = OUT_OF_MEMORY_RETRIES;
+        private volatile long retryBackoffMs = RETRY_BACKOFF_MS;
+        private volatile long retryBackoffMaxMs = RETRY_BACKOFF_MAX_MS;
+        
+        /** image_id -> Bitmap | GIFImage */
+        private final MemoryCache cache = new MemoryCache(DEFAULT_MEMORY_CACHE_BYTES);
+        /** downsampled bitmaps to survive process restart. Disabled until {@link #setDiskCache(Context, long)} is called */
+        private volatile DiskCache diskCache;
+        /** see {@link #setMetricsListener(MetricsListener)} */
+        private volatile MetricsListener metricsListener;
+        /** see {@link #setExactSizeDecoding(boolean)} */
+        private volatile boolean exactSizeDecoding = true;
     
         public ImageLoader() {
-            // launching thread
-            processingThread = new Decoder("AtlasImageLoader"); 
-            processingThread.start();
+            this(DEFAULT_DECODERS);
+        }
+        
+        /** @param decodersCount - number of threads decoding images in parallel */
+        public ImageLoader(int decodersCount) {
+            setDecodersCount(decodersCount);
+        }
+        
+        /** 
+         * Changes number of decoding threads. Extra threads are stopped after they finish 
+         * their current image, missing threads are started immediately
+         */
+        public void setDecodersCount(int count) {
+            if (count < 1) throw new IllegalArgumentException("At least one decoder is required. count: " + count);
+            synchronized (lock) {
+                decodersCount = count;
+                while (decoders.size() < count) {
+                    Decoder decoder = new Decoder("AtlasImageLoader-" + decoders.size());
+                    decoders.add(decoder);
+                    decoder.start();
+                }
+                lock.notifyAll();   // let extra decoders quit
+            }
+        }
+        
+        public int getDecodersCount() {
+            synchronized (lock) {
+                return decodersCount;
+            }
         }
         
         private final class Decoder extends Thread {
             public Decoder(String threadName) {
                 super(threadName);
+                setDaemon(true);
             }
             public void run() {
-                if (debug) Log.w(TAG, "ImageLoader.run() started");
+                if (debug) Log.w(TAG, "ImageLoader.run() started " + getName());
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
                 while (!shutdownLoader) {
    
                     ImageSpec spec = null;
+                    int queueDepth = 0;
                     // search bitmap ready to inflate
                     // wait for queue
                     synchronized (lock) {
                         while (spec == null && !shutdownLoader) {
+                            if (decoders.size() > decodersCount) { // pool has been shrunk
+                                decoders.remove(this);
+                                if (debug) Log.w(TAG, "ImageLoader.run() stopped " + getName());
+                                return;
+                            }
+                            spec = pollReady();
+                            queueDepth = queue.size();
+                            if (spec != null) break;
                             try {
-                                lock.wait();
-                                if (shutdownLoader) return;
-                                // picking from queue
-                                for (int i = 0; i < queue.size(); i++) {
-                                    if (queue.get(i).inputStreamProvider.ready()) { // ready to inflate
-                                        spec = queue.remove(i);
-                                        break;
-                                    }
-                                }
+                                lock.wait(nextRetryDelay());
                             } catch (InterruptedException e) {}
                         }
                     }
+                    if (spec == null) return; // shutdown
+                    
+                    MetricsListener metrics = metricsListener;
+                    long dequeuedAt = SystemClock.uptimeMillis();
+                    if (metrics != null) metrics.onDequeued(spec, dequeuedAt - spec.enqueuedAt, queueDepth);
                     
                     Object result = null;
-                    if (spec.gif) {
-                        InputStream is = spec.inputStreamProvider.getInputStream();
-                        Movie mov = Movie.decodeStream(is);
-                        if (debug) Log.w(TAG, "decodeImage() decoded GIF " + mov.width() + "x" + mov.height() + ":" + mov.duration() + "ms");
-                        Tools.closeQuietly(is);
-                        result = mov;
-                    } else {
-                        // decode dimensions
-                        long started = System.currentTimeMillis();
-                        InputStream streamForBounds = spec.inputStreamProvider.getInputStream();
-                        if (streamForBounds == null) { 
-                            Log.e(TAG, "decodeImage() stream is null! Request cancelled. Spec: " + spec.id + ", provider: " + spec.inputStreamProvider.getClass().getSimpleName()); return; 
-                        }
-                        BitmapFactory.Options originalOpts = new BitmapFactory.Options();
-                        originalOpts.inJustDecodeBounds = true;
-                        BitmapFactory.decodeStream(streamForBounds, null, originalOpts);
-                        Tools.closeQuietly(streamForBounds);
-                        // update spec if width and height are unknown
-                        spec.originalWidth = originalOpts.outWidth;
-                        spec.originalHeight = originalOpts.outHeight;
-                        
-                        // if required dimensions are not defined or bigger than original - use original dimensions
-                        int requiredWidth  = spec.requiredWidth  > 0 ? Math.min(spec.requiredWidth,  originalOpts.outWidth)  : originalOpts.outWidth;
-                        int requiredHeight = spec.requiredHeight > 0 ? Math.min(spec.requiredHeight, originalOpts.outHeight) : originalOpts.outHeight;
-                        int sampleSize = 1;
-                        // Use dimension with higher quality to meet both requirements
-                        float widthSampleSize  = sampleSize(originalOpts.outWidth,  requiredWidth);
-                        float heightSampleSize = sampleSize(originalOpts.outHeight, requiredHeight);
-                        sampleSize = (int)Math.min(widthSampleSize, heightSampleSize);
-                        if (debug) Log.w(TAG, "decodeImage() sampleSize: " + sampleSize + ", original: " + spec.originalWidth + "x" + spec.originalHeight
-                                + " required: " + spec.requiredWidth + "x" + spec.requiredHeight);
-                        
-                        BitmapFactory.Options decodeOpts = new BitmapFactory.Options();
-                        decodeOpts.inSampleSize = sampleSize;
-                        Bitmap bmp = null;
-                        InputStream streamForBitmap = spec.inputStreamProvider.getInputStream();
-                        try {
-                            bmp = BitmapFactory.decodeStream(streamForBitmap, null, decodeOpts);
-                        } catch (OutOfMemoryError e) {
-                            if (debug) Log.w(TAG, "decodeImage() out of memory. remove eldest");
-                            removeEldest();
-                            System.gc();
-                        }
-                        Tools.closeQuietly(streamForBitmap);
-                        if (bmp != null) {
-                            if (debug) Log.d(TAG, "decodeImage() decoded " + bmp.getWidth() + "x" + bmp.getHeight() 
-                                    + " " + bmp.getByteCount() + " bytes" 
-                                    + " req: " + spec.requiredWidth + "x" + spec.requiredHeight 
-                                    + " original: " + originalOpts.outWidth + "x" + originalOpts.outHeight 
-                                    + " sampleSize: " + sampleSize
-                                    + " in " +(System.currentTimeMillis() - started) + "ms from: " + spec.id);
-                        } else {
-                            if (debug) Log.d(TAG, "decodeImage() not decoded " + " req: " + requiredWidth + "x" + requiredHeight 
-                                    + " in " +(System.currentTimeMillis() - started) + "ms from: " + spec.id);
+                    int source = SOURCE_MEMORY;
+                    boolean cached = false;
+                    int outOfMemoryRetries = spec.outOfMemoryRetries;
+                    spec.boundsMs = 0;
+                    if (!spec.gif) {
+                        // cached meanwhile, i.e. by full-screen request for the same image? Listener counts its own lookup
+                        MemoryCache.Variant variant = cache.peekVariant(spec.id, spec.requiredWidth, spec.requiredHeight, decodedConfig(spec));
+                        if (variant != null) {
+                            result = variant.image;
+                            cached = true;
+                            if (variant.originalWidth != 0) {
+                                spec.originalWidth = variant.originalWidth;
+                                spec.originalHeight = variant.originalHeight;
+                            }
                         }
-                        result = bmp;
+                    }
+                    if (result == null && !spec.gif && (result = downscaleFromCache(spec)) != null) source = SOURCE_SCALED;
+                    if (result == null && !spec.gif && (result = decodeFromDisk(spec)) != null)     source = SOURCE_DISK;
+                    if (result == null && (result = decode(spec)) != null)                          source = SOURCE_ORIGINAL;
+                    if (metrics != null && result != null) {
+                        long now = SystemClock.uptimeMillis();
+                        metrics.onDecoded(spec, source, spec.boundsMs, now - dequeuedAt - spec.boundsMs, now - spec.requestedAt, MemoryCache.sizeOf(result));
                     }
    
-                    // decoded
+                    // decoded. Keep image even if request is cancelled: it's likely to be requested again soon
+                    boolean fits = true;
+                    if (result instanceof GIFImage) {   // cache has its own lock, don't make requestImage() wait for eviction
+                        // sampled GIF is kept as good for any size, otherwise it would be re-requested forever
+                        fits = cache.put(spec.id, result, 0, 0, 0, 0, spec.degraded);
+                    } else if (result != null && !cached) {
+                        fits = cache.put(spec.id, result, spec.originalWidth, spec.originalHeight, spec.requiredWidth, spec.requiredHeight, spec.degraded);
+                    }
+                    // listeners wouldn't find it in cache and request it again forever
+                    if (!fits) spec.image = result;
+                    // original dimensions are unknown for images from DiskCache, but decoded bitmap keeps aspect ratio
+                    if (result instanceof Bitmap && (spec.originalWidth == 0 || spec.originalHeight == 0)) {
+                        spec.originalWidth = ((Bitmap) result).getWidth();
+                        spec.originalHeight = ((Bitmap) result).getHeight();
+                    }
                     synchronized (lock) {
-                        if (result != null) {
-                            cache.put(spec.id, result);
-                            if (spec.listener != null) spec.listener.onImageLoaded(spec);
-                        } else if (spec.retries < BITMAP_DECODE_RETRIES) {
+                        spec.decoding = false;
+                        if (spec.cancelled) {
+                            if (debug) Log.w(TAG, "decodeImage() cancelled while decoding: " + spec.id);
+                            release(spec);
+                        } else if (result != null) {
+                            release(spec);
+                            if (spec.degraded && spec.upgrades < MAX_UPGRADES) {
+                                degraded.remove(spec.id);
+                                degraded.put(spec.id, spec);
+                                if (degraded.size() > MAX_DEGRADED) degraded.remove(degraded.keySet().iterator().next());
+                            } else if (!spec.degraded) {
+                                degraded.remove(spec.id);
+                            }
+                            // listeners run on main thread without lock held. Burst of decodes costs one dispatch 
+                            if (completed.add(spec) && completed.size() == 1) mainHandler.post(dispatchCompleted);
+                        } else if (spec.outOfMemoryRetries > outOfMemoryRetries) {
+                            if (spec.outOfMemoryRetries <= maxOutOfMemoryRetries) {
+                                scheduleRetry(spec);    // sampleSize is doubled already 
+                            } else {
+                                release(spec);
+                            }
+                        } else if (spec.retries < maxRetries) {
                             spec.retries++;
-                            queue.add(0, spec);         // schedule retry
-                            lock.notifyAll();
-                        } /*else forget about this image, never put it back in queue */
+                            scheduleRetry(spec);
+                        } else {
+                            release(spec);              // forget about this image, never put it back in queue
+                        }
                     }
    
+                    // only downsampled images are worth storing, reading them back is cheaper than decoding original
+                    boolean downsampled = result instanceof Bitmap && ((Bitmap) result).getWidth() < spec.originalWidth;
+                    if (downsampled && (source == SOURCE_ORIGINAL || source == SOURCE_SCALED) && !spec.degraded) storeOnDisk(spec, (Bitmap) result);
+   
                     if (debug) Log.w(TAG, "decodeImage()   cache: " + cache.size() + ", queue: " + queue.size() + ", id: " + spec.id);
                 }
             }
         }
         
+        /** 
+         * Notifies listeners of every spec decoded since previous dispatch. Runs on main thread. 
+         * Listeners are collected under <code>lock</code>, but called without it, so they are free 
+         * to request or cancel images. Listener cancelled before dispatch is not notified
+         */
+        private void dispatchCompleted() {
+            ArrayList<ImageSpec> specs = new ArrayList<ImageSpec>();
+            ArrayList<ImageLoadListener> listeners = new ArrayList<ImageLoadListener>();
+            synchronized (lock) {
+                for (ImageSpec spec : completed) {
+                    for (ImageLoadListener listener : spec.listeners) {
+                        specs.add(spec);
+                        listeners.add(listener);
+                    }
+                    ImageLoadListener assigned = spec.listener;     // set directly by code written for single listener
+                    if (assigned != null && !spec.listeners.contains(assigned)) {
+                        specs.add(spec);
+                        listeners.add(assigned);
+                    }
+                }
+                completed.clear();
+            }
+            if (debug) Log.w(TAG, "dispatchCompleted() notifying " + listeners.size() + " listeners");
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).onImageLoaded(specs.get(i));
+            }
+        }
+        
+        /** 
+         * Picks the most important spec ready to be decoded. Among specs with equal priority 
+         * the most recently requested wins. Specs with content not ready yet are parked in 
+         * <code>waiting</code> until {@link #onContentReady(Object)}. Must be called with <code>lock</code> held
+         */
+        private ImageSpec pollReady() {
+            if (delayed.size() > 0) {
+                long now = SystemClock.uptimeMillis();
+                for (Iterator<ImageSpec> it = delayed.iterator(); it.hasNext(); ) {
+                    ImageSpec retry = it.next();
+                    if (retry.notBefore > now) continue;
+                    it.remove();
+                    enqueue(retry);
+                }
+            }
+            ImageSpec spec;
+            while ((spec = queue.peek()) != null) {
+                if (paused && spec.priority < PRIORITY_FULL_SCREEN) return null;   // the rest is even less important
+                queue.poll();
+                if (spec.inputStreamProvider.ready()) {
+                    spec.decoding = true;
+                    return spec;
+                }
+                waiting.add(spec);
+            }
+            if (paused) return null;
+            spec = nextUpgrade();
+            if (spec != null) spec.decoding = true;
+            return spec;
+        }
+        
+        /** 
+         * Nothing else to do: decode degraded image again at full quality if heap has room for it. 
+         * Must be called with <code>lock</code> held 
+         * 
+         * @return spec registered in <code>pending</code>, or <b>null</b>
+         */
+        private ImageSpec nextUpgrade() {
+            if (degraded.size() == 0) return null;
+            Runtime runtime = Runtime.getRuntime();
+            long headroom = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+            for (Iterator<ImageSpec> it = degraded.values().iterator(); it.hasNext(); ) {
+                ImageSpec old = it.next();
+                if (pending.containsKey(old.id)) continue;  // requested again meanwhile
+                int sampleSize = sampleSize(old, old.originalWidth, old.originalHeight);
+                long bytes = 4L * (old.originalWidth / sampleSize) * (old.originalHeight / sampleSize);
+                if (bytes * 2 > headroom) continue;        // decoder needs room for temporary buffers too
+                if (!old.inputStreamProvider.ready()) continue;
+                it.remove();
+                ImageSpec spec = new ImageSpec();
+                spec.loader = this;
+                spec.id = old.id;
+                spec.inputStreamProvider = old.inputStreamProvider;
+                spec.requiredWidth = old.requiredWidth;
+                spec.requiredHeight = old.requiredHeight;
+                spec.config = old.config;
+                spec.priority = PRIORITY_PREFETCH;
+                spec.upgrades = old.upgrades + 1;
+                spec.requestedAt = SystemClock.uptimeMillis();
+                spec.enqueuedAt = spec.requestedAt;
+                pending.put(spec.id, spec);
+                if (debug) Log.w(TAG, "nextUpgrade() " + bytes + " bytes of " + headroom + " headroom, id: " + spec.id);
+                return spec;
+            }
+            return null;
+        }
+        
+        /** delays next attempt exponentially. Must be called with <code>lock</code> held */
+        private void scheduleRetry(ImageSpec spec) {
+            spec.enqueuedAt = SystemClock.uptimeMillis();
+            int attempts = spec.retries + spec.outOfMemoryRetries;
+            long delay = Math.min(retryBackoffMaxMs, retryBackoffMs << Math.min(attempts - 1, 16));
+            spec.notBefore = SystemClock.uptimeMillis() + delay;
+            delayed.add(spec);
+            lock.notifyAll();   // waiting decoders recalculate their timeout
+            if (debug) Log.w(TAG, "scheduleRetry() in " + delay + "ms, retries: " + spec.retries + ", OOMs: " + spec.outOfMemoryRetries + ", id: " + spec.id);
+        }
+        
+        /** @return ms until the earliest delayed retry, or 0 if there is nothing to retry. Must be called with <code>lock</code> held */
+        private long nextRetryDelay() {
+            if (delayed.size() == 0) return 0;
+            long earliest = Long.MAX_VALUE;
+            for (ImageSpec spec : delayed) {
+                earliest = Math.min(earliest, spec.notBefore);
+            }
+            return Math.max(1, earliest - SystemClock.uptimeMillis());
+        }
+        
+        /** @return decoded Bitmap or GIFImage, or <b>null</b> if decoding failed */
+        private Object decode(ImageSpec spec) {
+            Object result = null;
+            if (spec.gif) {
+                result = decodeGIF(spec);
+            } else {
+                // decode dimensions
+                long started = SystemClock.uptimeMillis();
+                BufferedInputStream stream = spec.inputStreamProvider.getRewindableInputStream(HEADER_PROBE_LIMIT);
+                if (stream == null) { 
+                    Log.e(TAG, "decodeImage() stream is null! Request cancelled. Spec: " + spec.id + ", provider: " + spec.inputStreamProvider.getClass().getSimpleName());
+                    spec.retries = maxRetries;
+                    return null; 
+                }
+                BitmapFactory.Options originalOpts = new BitmapFactory.Options();
+                originalOpts.inJustDecodeBounds = true;
+                BitmapFactory.decodeStream(new UnmarkableInputStream(stream), null, originalOpts);
+                try {
+                    stream.reset();     // same bytes are used to decode pixels
+                } catch (IOException e) {
+                    if (debug) Log.w(TAG, "decodeImage() header is longer than " + HEADER_PROBE_LIMIT + " bytes, reopening stream for: " + spec.id);
+                    Tools.closeQuietly(stream);
+                    stream = null;
+                }
+                spec.boundsMs = SystemClock.uptimeMillis() - started;
+                // update spec if width and height are unknown
+                spec.originalWidth = originalOpts.outWidth;
+                spec.originalHeight = originalOpts.outHeight;
+                
+                int sampleSize = sampleSize(spec, originalOpts.outWidth, originalOpts.outHeight);
+                // previous attempt ran out of memory, go lower
+                spec.degraded = spec.minSampleSize > sampleSize;
+                if (spec.degraded) sampleSize = spec.minSampleSize;
+                if (debug) Log.w(TAG, "decodeImage() sampleSize: " + sampleSize + ", original: " + spec.originalWidth + "x" + spec.originalHeight
+                        + " required: " + spec.requiredWidth + "x" + spec.requiredHeight);
+                
+                BitmapFactory.Options decodeOpts = new BitmapFactory.Options();
+                decodeOpts.inSampleSize = sampleSize;
+                if (spec.config != null) decodeOpts.inPreferredConfig = spec.config;
+                decodeOpts.inDither = decodeOpts.inPreferredConfig == Bitmap.Config.RGB_565;   // avoid banding on gradients
+                
+                // sampleSize is power of two only, scale the rest down with density ratio applied by decoder
+                int[] decodedSize = decodedSize(spec, originalOpts.outWidth, originalOpts.outHeight, sampleSize);
+                int sampledWidth  = (originalOpts.outWidth  + sampleSize - 1) / sampleSize;
+                int sampledHeight = (originalOpts.outHeight + sampleSize - 1) / sampleSize;
+                boolean scaled = decodedSize[0] < sampledWidth || decodedSize[1] < sampledHeight;
+                decodeOpts.inScaled = scaled;
+                if (scaled) {
+                    boolean byWidth = sampledWidth >= sampledHeight;     // longer side keeps more precision
+                    decodeOpts.inDensity       = byWidth ? sampledWidth    : sampledHeight;
+                    decodeOpts.inTargetDensity = byWidth ? decodedSize[0] : decodedSize[1];
+                }
+                spec.sampleSize = sampleSize;
+                Bitmap bmp = null;
+                try {
+                    bmp = decodeStream(stream, spec.inputStreamProvider, decodeOpts);
+                } catch (OutOfMemoryError e) {
+                    if (debug) Log.w(TAG, "decodeImage() out of memory with sampleSize: " + sampleSize + ", trimming cache: " + cache);
+                    cache.trimToSize(cache.getSize() / 2);
+                    spec.outOfMemoryRetries++;
+                    spec.minSampleSize = sampleSize * 2;
+                    MetricsListener metrics = metricsListener;
+                    if (metrics != null) metrics.onOutOfMemory(spec, sampleSize);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "decodeImage() cannot decode " + spec.id, e);
+                }
+                // decoder marks scaled bitmap with inTargetDensity, drawables would scale it back otherwise
+                if (bmp != null && scaled) bmp.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+                if (bmp != null) {
+                    if (debug) Log.d(TAG, "decodeImage() decoded " + bmp.getWidth() + "x" + bmp.getHeight() 
+                            + " " + bmp.getByteCount() + " bytes" 
+                            + " req: " + spec.requiredWidth + "x" + spec.requiredHeight 
+                            + " original: " + originalOpts.outWidth + "x" + originalOpts.outHeight 
+                            + " sampleSize: " + sampleSize + (scaled ? " scaled: " + decodeOpts.inTargetDensity + "/" + decodeOpts.inDensity : "")
+                            + " in " +(SystemClock.uptimeMillis() - started) + "ms from: " + spec.id);
+                } else {
+                    if (debug) Log.d(TAG, "decodeImage() not decoded " + " req: " + spec.requiredWidth + "x" + spec.requiredHeight 
+                            + " in " +(SystemClock.uptimeMillis() - started) + "ms from: " + spec.id);
+                }
+                result = bmp;
+            }
+            return result;
+        }
+        
+        /** 
+         * Indexes GIF frames and renders the first one, downsampled like bitmaps are. The rest 
+         * of frames are rendered by {@link GIFDrawable} while playing 
+         */
+        private GIFImage decodeGIF(ImageSpec spec) {
+            InputStream is = spec.inputStreamProvider.getInputStream();
+            if (is == null) { 
+                Log.e(TAG, "decodeGIF() stream is null! Request cancelled. Spec: " + spec.id + ", provider: " + spec.inputStreamProvider.getClass().getSimpleName());
+                spec.retries = maxRetries;
+                return null; 
+            }
+            int sampleSize = spec.minSampleSize;
+            try {
+                long started = SystemClock.uptimeMillis();
+                long size = spec.inputStreamProvider.getSize();
+                GIFImage gif = GIFImage.read(is, size > 0 && size < Integer.MAX_VALUE ? (int) size : -1);
+                spec.boundsMs = SystemClock.uptimeMillis() - started;
+                spec.originalWidth = gif.width;
+                spec.originalHeight = gif.height;
+                sampleSize = sampleSize(spec, gif.width, gif.height);
+                spec.degraded = spec.minSampleSize > sampleSize;
+                if (spec.degraded) sampleSize = spec.minSampleSize;
+                spec.sampleSize = sampleSize;
+                gif = gif.decode(sampleSize);
+                if (debug) Log.w(TAG, "decodeGIF() decoded " + gif.width + "x" + gif.height + ", frames: " + gif.getFrameCount() 
+                        + ", sampleSize: " + sampleSize + " in " + (SystemClock.uptimeMillis() - started) + "ms from: " + spec.id);
+                return gif;
+            } catch (IOException e) {
+                Log.e(TAG, "decodeGIF() cannot decode " + spec.id, e);
+            } catch (OutOfMemoryError e) {
+                if (debug) Log.w(TAG, "decodeGIF() out of memory with sampleSize: " + sampleSize + ", trimming cache: " + cache);
+                cache.trimToSize(cache.getSize() / 2);
+                spec.outOfMemoryRetries++;
+                spec.minSampleSize = sampleSize * 2;
+                MetricsListener metrics = metricsListener;
+                if (metrics != null) metrics.onOutOfMemory(spec, sampleSize);
+            } finally {
+                Tools.closeQuietly(is);
+            }
+            return null;
+        }
+        
+        /** decodes <code>stream</code> or a new one from provider if stream is null. Stream is closed afterwards */
+        private static Bitmap decodeStream(InputStream stream, InputStreamProvider provider, BitmapFactory.Options opts) {
+            if (stream == null) stream = provider.getInputStream();
+            try {
+                return BitmapFactory.decodeStream(stream, null, opts);
+            } finally {
+                Tools.closeQuietly(stream);
+            }
+        }
+        
+        /** 
+         * @return Bitmap previously downsampled for the same id and required size, or null if {@link DiskCache} 
+         * is not set or has no such image 
+         */
+        private Bitmap decodeFromDisk(ImageSpec spec) {
+            DiskCache disk = diskCache;
+            if (disk == null) return null;
+            File file = disk.get(diskKey(spec));
+            if (file == null) return null;
+            long started = System.currentTimeMillis();
+            Bitmap bmp = null;
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            if (spec.config != null) opts.inPreferredConfig = spec.config;
+            opts.inDither = opts.inPreferredConfig == Bitmap.Config.RGB_565;
+            try {
+                bmp = BitmapFactory.decodeFile(file.getAbsolutePath(), opts);
+            } catch (OutOfMemoryError e) {
+                if (debug) Log.w(TAG, "decodeFromDisk() out of memory. trimming cache: " + cache);
+                cache.trimToSize(cache.getSize() / 2);
+                return null;
+            }
+            if (bmp == null) {
+                Log.e(TAG, "decodeFromDisk() cannot decode " + file + ", removing");
+                disk.remove(diskKey(spec));
+                return null;
+            }
+            if (debug) Log.d(TAG, "decodeFromDisk() decoded " + bmp.getWidth() + "x" + bmp.getHeight() 
+                    + " in " + (System.currentTimeMillis() - started) + "ms from: " + file.getName());
+            return bmp;
+        }
+        
+        private void storeOnDisk(ImageSpec spec, Bitmap bmp) {
+            DiskCache disk = diskCache;
+            if (disk == null) return;
+            long started = System.currentTimeMillis();
+            // opaque images are way smaller as JPEG, PNG keeps transparency
+            boolean stored = bmp.hasAlpha() 
+                    ? disk.put(diskKey(spec), bmp, Bitmap.CompressFormat.PNG, 100)
+                    : disk.put(diskKey(spec), bmp, Bitmap.CompressFormat.JPEG, DISK_CACHE_JPEG_QUALITY);
+            if (debug) Log.d(TAG, "storeOnDisk() " + (stored ? "stored " : "failed ") + bmp.getWidth() + "x" + bmp.getHeight() 
+                    + " in " + (System.currentTimeMillis() - started) + "ms, " + disk);
+        }
+        
+        /** 
+         * Makes required size variant out of bigger one cached for other request, i.e. list thumbnail 
+         * out of full-screen image. Much cheaper than decoding original again 
+         * 
+         * @return scaled Bitmap or <b>null</b> if there is nothing bigger to scale from 
+         */
+        private Bitmap downscaleFromCache(ImageSpec spec) {
+            MemoryCache.Variant source = cache.getBiggestVariant(spec.id);
+            if (source == null || !(source.image instanceof Bitmap) || source.originalWidth == 0) return null;
+            if (!coversConfig(source.config, decodedConfig(spec))) return null;   // scaled bitmap keeps config of source
+            int sampleSize = sampleSize(spec, source.originalWidth, source.originalHeight);
+            int[] decodedSize = decodedSize(spec, source.originalWidth, source.originalHeight, sampleSize);
+            int width  = decodedSize[0];
+            int height = decodedSize[1];
+            if (source.width <= width || source.height <= height) return null;     // not bigger, nothing to gain
+            long started = System.currentTimeMillis();
+            Bitmap bmp = cache.createScaledBitmap(source, width, height);
+            if (bmp == null) return null;
+            spec.originalWidth = source.originalWidth;
+            spec.originalHeight = source.originalHeight;
+            spec.sampleSize = sampleSize;
+            if (debug) Log.d(TAG, "downscaleFromCache() " + source.width + "x" + source.height + " -> " + width + "x" + height 
+                    + " in " + (System.currentTimeMillis() - started) + "ms from: " + spec.id);
+            return bmp;
+        }
+        
+        /** 
+         * the same part requested with different size or config is stored separately: RGB_565 decode is 
+         * dithered and written without alpha, it would degrade ARGB_8888 request of the same size
+         */
+        private static String diskKey(ImageSpec spec) {
+            String key = spec.id + "@" + spec.requiredWidth + "x" + spec.requiredHeight;
+            Bitmap.Config config = decodedConfig(spec);
+            return config == Bitmap.Config.ARGB_8888 ? key : key + "_" + config;   // ARGB_8888 keeps keys stored before
+        }
+        
+        /** 
+         * @return {width, height} of bitmap decoded with sampleSize. With {@link #setExactSizeDecoding(boolean)} 
+         *         it is scaled further down, keeping aspect ratio, until one of required dimensions is met exactly 
+         */
+        private int[] decodedSize(ImageSpec spec, int originalWidth, int originalHeight, int sampleSize) {
+            // decoders round up when sampling
+            int width  = (originalWidth  + sampleSize - 1) / sampleSize;
+            int height = (originalHeight + sampleSize - 1) / sampleSize;
+            if (!exactSizeDecoding) return new int[] { width, height };
+            int requiredWidth  = spec.requiredWidth  > 0 ? Math.min(spec.requiredWidth,  width)  : width;
+            int requiredHeight = spec.requiredHeight > 0 ? Math.min(spec.requiredHeight, height) : height;
+            // the dimension needing relatively more pixels defines scale, the other one is then bigger than required
+            if ((long) requiredWidth * height >= (long) requiredHeight * width) {
+                return new int[] { requiredWidth, Math.max(1, (int) Math.ceil(1.0 * height * requiredWidth / width)) };
+            } else {
+                return new int[] { Math.max(1, (int) Math.ceil(1.0 * width * requiredHeight / height)), requiredHeight };
+            }
+        }
+        
+        /** @return sampleSize to decode image for spec, so both required dimensions are met */
+        private static int sampleSize(ImageSpec spec, int originalWidth, int originalHeight) {
+            // if required dimensions are not defined or bigger than original - use original dimensions
+            int requiredWidth  = spec.requiredWidth  > 0 ? Math.min(spec.requiredWidth,  originalWidth)  : originalWidth;
+            int requiredHeight = spec.requiredHeight > 0 ? Math.min(spec.requiredHeight, originalHeight) : originalHeight;
+            // Use dimension with higher quality to meet both requirements
+            return Math.min(sampleSize(originalWidth, requiredWidth), sampleSize(originalHeight, requiredHeight));
+        }
+        
         /**
          *
          * Return maximum possible sampleSize to decode bitmap with dimensions >= minRequired
@@ -777,77 +1499,318 @@ public class Atlas {
             return sampleSize;
         }
     
+        /** @return the biggest cached variant of image */
         public Object getImageFromCache(Object id) {
             return cache.get(id);
         }
-                
-        /**
-         * @return - byteCount of removed bitmap if bitmap found. <bold>-1</bold> otherwise
+        
+        /** @return the smallest cached variant good enough to display at required size. 0 means original */
+        public Object getImageFromCache(Object id, int requiredWidth, int requiredHeight) {
+            return cache.get(id, requiredWidth, requiredHeight);
+        }
+        
+        /** 
+         * @param config - pixel format image must be at least as good as, i.e. ARGB_8888 to skip RGB_565 variants. <b>null</b> accepts any 
+         * @return the smallest cached variant good enough to display at required size. 0 means original 
          */
-        private int removeEldest() {
-            synchronized (lock) {
-                if (cache.size() > 0) {
-                    Map.Entry<Object, Object> entry = cache.entrySet().iterator().next();
-                    Object bmp = entry.getValue();
-                    cache.remove(entry.getKey());
-                    int releasedBytes = (bmp instanceof Bitmap) ? ((Bitmap) bmp).getByteCount() : 0; /*((Movie)bmp).byteCount(); */
-                    if (debug) Log.w(TAG, "removeEldest() id: " + entry.getKey() + ", bytes: " + releasedBytes);
-                    return releasedBytes;
-                } else {
-                    if (debug) Log.w(TAG, "removeEldest() nothing to remove...");
-                    return -1;
-                }
-            }
+        public Object getImageFromCache(Object id, int requiredWidth, int requiredHeight, Bitmap.Config config) {
+            return cache.get(id, requiredWidth, requiredHeight, config);
+        }
+        
+        /** 
+         * Checks cache without counting hit or miss, i.e. before prefetching. Use {@link #getImageFromCache(Object, int, int)} 
+         * to get image that is going to be displayed 
+         * 
+         * @return <b>true</b> if image is cached good enough to display at required size. 0 means original
+         */
+        public boolean isCached(Object id, int requiredWidth, int requiredHeight) {
+            return cache.peekVariant(id, requiredWidth, requiredHeight) != null;
+        }
+        
+        /** 
+         * @param exact - <b>true</b> to scale images down to required size while decoding, <b>false</b> to use 
+         *                power of two sampleSize only. Latter is slightly faster, but bitmap can be up to 4 times 
+         *                bigger than required. Enabled by default 
+         */
+        public void setExactSizeDecoding(boolean exact) {
+            this.exactSizeDecoding = exact;
+        }
+        
+        /** 
+         * @param listener - receives timings and counters of every decode and cache lookup, i.e. {@link HistogramMetrics}. 
+         *                   Called from decoder threads and UI thread, must be fast and thread-safe. <b>null</b> to disable 
+         */
+        public void setMetricsListener(MetricsListener listener) {
+            this.metricsListener = listener;
+            cache.metricsListener = listener;
+        }
+        
+        public MetricsListener getMetricsListener() {
+            return metricsListener;
+        }
+        
+        /** Provides access to cache size and hit/miss/eviction counters */
+        public MemoryCache getMemoryCache() {
+            return cache;
+        }
+        
+        /** 
+         * Limits memory cache by a fraction of per-application memory (see {@link ActivityManager#getMemoryClass()})
+         * @param fraction - (0..1], i.e. 0.25f to use a quarter of the application heap for images
+         */
+        public void setMemoryBudget(Context context, float fraction) {
+            if (fraction <= 0 || fraction > 1) throw new IllegalArgumentException("fraction must be in (0..1]. fraction: " + fraction);
+            ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            long budget = (long) (1024L * 1024L * am.getMemoryClass() * fraction);
+            setMemoryBudget(budget);
+        }
+        
+        /** @param bytes - maximum amount of bytes occupied by cached images. Cache is trimmed immediately if needed */
+        public void setMemoryBudget(long bytes) {
+            cache.setMaxBytes(bytes);
+            if (debug) Log.w(TAG, "setMemoryBudget() " + cache);
+        }
+        
+        /** 
+         * Enables persistent cache of downsampled images in application cache dir. Only images decoded smaller
+         * than original are stored, so reading them back is always cheaper than decoding the original 
+         * 
+         * @param maxBytes - disk space limit, least recently used images are removed when exceeded
+         */
+        public void setDiskCache(Context context, long maxBytes) {
+            setDiskCache(new DiskCache(new File(context.getCacheDir(), "atlas-images"), maxBytes));
+        }
+        
+        /** @param diskCache - cache to use or <b>null</b> to disable */
+        public void setDiskCache(DiskCache diskCache) {
+            this.diskCache = diskCache;
+        }
+        
+        public DiskCache getDiskCache() {
+            return diskCache;
         }
                 
         /**
-         * @see #requestImage(Object, InputStreamProvider, int, int, boolean, ImageLoadListener) 
+         * @see #requestImage(Object, InputStreamProvider, int, int, boolean, int, ImageLoadListener) 
          */
         public ImageSpec requestImage(Object id, InputStreamProvider streamProvider, ImageLoader.ImageLoadListener loadListener) {
-            return requestImage(id, streamProvider, 0, 0, false, loadListener);
+            return requestImage(id, streamProvider, 0, 0, false, PRIORITY_VISIBLE, loadListener);
         }
         
         /**
-         * @see #requestImage(Object, InputStreamProvider, int, int, boolean, ImageLoadListener) 
+         * @see #requestImage(Object, InputStreamProvider, int, int, boolean, int, ImageLoadListener) 
          */
         public ImageSpec requestImage(Object id, InputStreamProvider streamProvider, boolean gif, ImageLoader.ImageLoadListener loadListener) {
-            return requestImage(id, streamProvider, 0, 0, gif, loadListener);
+            return requestImage(id, streamProvider, 0, 0, gif, PRIORITY_VISIBLE, loadListener);
         }
         
-        /** 
-         * @param id                - something you will use to get image from cache later
+        /**
+         * @see #requestImage(Object, InputStreamProvider, int, int, boolean, int, ImageLoadListener) 
+         */
+        public ImageSpec requestImage(Object id, InputStreamProvider streamProvider, int requiredWidth, int requiredHeight, boolean gif, ImageLoader.ImageLoadListener loadListener) {
+            return requestImage(id, streamProvider, requiredWidth, requiredHeight, gif, PRIORITY_VISIBLE, loadListener);
+        }
+        
+        /** 
+         * @param id                - something you will use to get image from cache later
          * @param streamProvider    - something that provides raw bytes. See {@link Atlas.FileStreamProvider} or {@link Atlas.MessagePartStreamProvider}
          * @param requiredWidth     - 
          * @param requiredHeight    - provide image dimensions you need to save memory if original dimensions are bigger
-         * @param gif               - android.graphics.Movie would be decoded instead of Bitmap. <b>Warning!</b> {@link Atlas.MessagePartBufferedStreamProvider} must be used 
+         * @param gif               - {@link GIFImage} would be decoded instead of Bitmap. <b>Warning!</b> {@link Atlas.MessagePartBufferedStreamProvider} must be used 
+         * @param priority          - {@link #PRIORITY_PREFETCH}, {@link #PRIORITY_VISIBLE} or {@link #PRIORITY_FULL_SCREEN}. 
+         *                            Repeated request never lowers priority of already queued image 
          * @param loadListener      - something you can use to be notified when image is loaded
          */
-        public ImageSpec requestImage(Object id, InputStreamProvider streamProvider, int requiredWidth, int requiredHeight, boolean gif, ImageLoader.ImageLoadListener loadListener) {
+        public ImageSpec requestImage(Object id, InputStreamProvider streamProvider, int requiredWidth, int requiredHeight, boolean gif, int priority, ImageLoader.ImageLoadListener loadListener) {
+            return requestImage(id, streamProvider, requiredWidth, requiredHeight, gif, priority, -1, loadListener);
+        }
+        
+        /**
+         * @param position          - position in list image is displayed at, or <b>-1</b> if image is not bound to list. 
+         *                            Among equal priorities images closer to {@link #setVisibleRange(int, int)} are decoded first
+         * @see #requestImage(Object, InputStreamProvider, int, int, boolean, int, ImageLoadListener)
+         */
+        public ImageSpec requestImage(Object id, InputStreamProvider streamProvider, int requiredWidth, int requiredHeight, boolean gif, int priority, int position, ImageLoader.ImageLoadListener loadListener) {
             ImageSpec spec = null;
             synchronized (lock) {
-                for (int i = 0; i < queue.size(); i++) {
-                    if (queue.get(i).id.equals(id)) {
-                        spec = queue.remove(i);
-                        break;
-                    }
+                spec = pending.get(id);
+                Bitmap.Config config = streamProvider.getPreferredConfig();
+                if (config == null) config = Bitmap.Config.ARGB_8888;
+                if (spec != null && spec.decoding && !(covers(spec.requiredWidth, requiredWidth) && covers(spec.requiredHeight, requiredHeight) 
+                        && coversConfig(decodedConfig(spec), config))) {
+                    spec = null;    // being decoded smaller or poorer than needed. Decode proper one, this one is released when done
                 }
                 if (spec == null) {
                     spec = new ImageSpec();
+                    spec.loader = this;
                     spec.id = id;
                     spec.inputStreamProvider = streamProvider;
                     spec.requiredHeight = requiredHeight;
                     spec.requiredWidth = requiredWidth;
-                    spec.listener = loadListener;
                     spec.gif = gif;
+                    spec.config = streamProvider.getPreferredConfig();
+                    spec.priority = priority;
+                    spec.position = position;
+                    spec.requestedAt = SystemClock.uptimeMillis();
+                    spec.enqueuedAt = spec.requestedAt;
+                    pending.put(id, spec);
+                    enqueue(spec);
+                } else {
+                    // coalesce with request already queued or being decoded
+                    spec.cancelled = false;
+                    if (priority > spec.priority) spec.priority = priority;
+                    if (!spec.decoding) {
+                        // not started yet: decode enough for everybody. 0 means original size
+                        spec.requiredWidth  = maxRequired(spec.requiredWidth,  requiredWidth);
+                        spec.requiredHeight = maxRequired(spec.requiredHeight, requiredHeight);
+                        if (!coversConfig(decodedConfig(spec), config)) spec.config = Bitmap.Config.ARGB_8888;
+                        if (position != -1) spec.position = position;
+                        if (!delayed.contains(spec)) {  // retry waits for its backoff anyway
+                            waiting.remove(spec);       // content might have arrived without notification
+                            enqueue(spec);              // moves it ahead of older requests
+                        }
+                    }
+                }
+                if (loadListener != null && !spec.listeners.contains(loadListener)) {
+                    spec.listeners.add(loadListener);
+                    if (spec.listener == null) spec.listener = loadListener;
                 }
-                queue.add(0, spec);
                 lock.notifyAll();
             }
-            if (debug) Log.w(TAG, "requestBitmap() cache: " + cache.size() + ", queue: " + queue.size() + ", id: " + id + ", reqs: " + requiredWidth + "x" + requiredHeight);
+            if (debug) Log.w(TAG, "requestBitmap() cache: " + cache.size() + ", queue: " + queue.size() + ", id: " + id + ", reqs: " + requiredWidth + "x" + requiredHeight + ", priority: " + priority + ", position: " + position);
             return spec;
         }
+        
+        /**
+         * @param maxRetries            - how many times decoding is repeated if it fails for other reasons than memory 
+         * @param maxOutOfMemoryRetries - how many times decoding is repeated after OutOfMemoryError. Each time sampleSize 
+         *                                is doubled and result is marked as {@link ImageSpec#degraded}
+         * @param backoffMs             - delay before the first retry, doubled with every next one 
+         * @param maxBackoffMs          - longest delay between retries 
+         */
+        public void setRetryPolicy(int maxRetries, int maxOutOfMemoryRetries, long backoffMs, long maxBackoffMs) {
+            if (maxRetries < 0) throw new IllegalArgumentException("maxRetries cannot be negative: " + maxRetries);
+            if (maxOutOfMemoryRetries < 0) throw new IllegalArgumentException("maxOutOfMemoryRetries cannot be negative: " + maxOutOfMemoryRetries);
+            if (backoffMs <= 0) throw new IllegalArgumentException("backoffMs must be positive: " + backoffMs);
+            if (maxBackoffMs < backoffMs) throw new IllegalArgumentException("maxBackoffMs: " + maxBackoffMs + " is less than backoffMs: " + backoffMs);
+            this.maxRetries = maxRetries;
+            this.maxOutOfMemoryRetries = maxOutOfMemoryRetries;
+            this.retryBackoffMs = backoffMs;
+            this.retryBackoffMaxMs = maxBackoffMs;
+        }
+        
+        /** 
+         * Pauses decoding of everything but {@link #PRIORITY_FULL_SCREEN} images, i.e. while list 
+         * is flinging and decoded images are outdated before they are displayed. Images being decoded 
+         * already are finished.
+         */
+        public void setPaused(boolean paused) {
+            synchronized (lock) {
+                if (this.paused == paused) return;
+                this.paused = paused;
+                if (!paused) lock.notifyAll();
+            }
+            if (debug) Log.w(TAG, "setPaused() " + paused + ", queue: " + queue.size());
+        }
+        
+        /** 
+         * Reports range of list positions currently on screen. Queued images with equal priority 
+         * are decoded in order of their distance from this range. See {@link ImageSpec#position}
+         */
+        public void setVisibleRange(int firstVisible, int lastVisible) {
+            if (firstVisible > lastVisible) throw new IllegalArgumentException("firstVisible: " + firstVisible + " is after lastVisible: " + lastVisible);
+            synchronized (lock) {
+                queue.setVisibleRange(firstVisible, lastVisible);
+            }
+        }
+        
+        /** forgets spec unless it has been replaced by bigger request already. Must be called with <code>lock</code> held */
+        private void release(ImageSpec spec) {
+            if (pending.get(spec.id) == spec) pending.remove(spec.id);
+        }
+        
+        /** puts spec into decoding queue, or parks it until content is ready. Must be called with <code>lock</code> held */
+        private void enqueue(ImageSpec spec) {
+            if (spec.inputStreamProvider.ready()) {
+                queue.add(spec);
+            } else {
+                queue.remove(spec);
+                waiting.add(spec);
+            }
+        }
+        
+        /** 
+         * Notifies loader that content of requested image has been downloaded, i.e. from 
+         * <code>LayerProgressListener.onProgressComplete()</code> or when downloaded file arrives. 
+         * Parked request is moved to decoding queue immediately
+         * 
+         * @param id - the same id image has been requested with 
+         */
+        public void onContentReady(Object id) {
+            synchronized (lock) {
+                ImageSpec spec = pending.get(id);
+                if (spec == null || !waiting.contains(spec)) return;
+                if (!spec.inputStreamProvider.ready()) return;
+                waiting.remove(spec);
+                queue.add(spec);
+                lock.notifyAll();
+            }
+            if (debug) Log.w(TAG, "onContentReady() queue: " + queue.size() + ", id: " + id);
+        }
+        
+        private static int maxRequired(int required, int another) {
+            if (required == 0 || another == 0) return 0;
+            return Math.max(required, another);
+        }
+        
+        /** 
+         * Unsubscribes listener. When no listeners remain, spec is removed from queue. If spec 
+         * is being decoded already, image would be cached, but nobody is notified
+         * 
+         * @param listener - listener to remove, or <b>null</b> to cancel request for everybody  
+         */
+        private void cancel(ImageSpec spec, ImageLoadListener listener) {
+            synchronized (lock) {
+                if (spec.cancelled) return;
+                if (listener != null) {
+                    spec.listeners.remove(listener);
+                    if (spec.listener == listener) spec.listener = spec.listeners.size() > 0 ? spec.listeners.get(0) : null;
+                    if (spec.listeners.size() > 0) return;
+                } 
+                spec.listeners.clear();
+                spec.listener = null;
+                spec.cancelled = true;
+                if (!spec.decoding) {
+                    queue.remove(spec);
+                    waiting.remove(spec);
+                    delayed.remove(spec);
+                    release(spec);
+                } // else: decoder releases it. Repeated request picks it up meanwhile 
+            }
+            if (debug) Log.w(TAG, "cancel() queue: " + queue.size() + ", id: " + spec.id);
+        }
 
+        /** 
+         * Handle of requested image. Returned by requestImage(), could be used to cancel request. 
+         * Requests for the same id share one spec  
+         */
         public static class ImageSpec {
+            private ImageLoader loader;
+            /** guarded by loader.lock */
+            private final ArrayList<ImageLoadListener> listeners = new ArrayList<ImageLoadListener>(2);
+            private boolean decoding;
+            /** position in {@link RequestQueue}, -1 if not queued */
+            private int queueIndex = -1;
+            /** request order, the latest request wins among equal priorities */
+            private long sequence;
+            private volatile boolean cancelled;
+            /** 
+             * @deprecated requests for the same id share spec, so it has a listener per request. Holds the first 
+             * of them. Listener assigned here is notified too. Use {@link ImageLoader#requestImage} to subscribe
+             * and {@link #cancel(ImageLoadListener)} to unsubscribe 
+             */
+            @Deprecated
+            public volatile ImageLoader.ImageLoadListener listener;
             public Object id;
             public InputStreamProvider inputStreamProvider;
             public int requiredWidth;
@@ -855,11 +1818,374 @@ public class Atlas {
             public int originalWidth;
             public int originalHeight;
             public boolean gif;
+            /** pixel format to decode into, <b>null</b> for default ARGB_8888. See {@link InputStreamProvider#getPreferredConfig()} */
+            public Bitmap.Config config;
             public int downloadProgress;
             public int retries = 0;
-            public ImageLoader.ImageLoadListener listener;
+            public int outOfMemoryRetries = 0;
+            /** 
+             * image is decoded with lower resolution than required because of OutOfMemoryError. Loader decodes 
+             * it again when there is enough memory, cells get better image at next bind 
+             */
+            public boolean degraded;
+            /** sampleSize doubled after every OutOfMemoryError */
+            private int minSampleSize = 1;
+            /** SystemClock.uptimeMillis() to retry failed decoding at */
+            private long notBefore;
+            private int upgrades;
+            /** SystemClock.uptimeMillis() of request and of the last time spec has been put into queue */
+            private long requestedAt;
+            private long enqueuedAt;
+            /** duration of the last bounds pass, 0 if image didn't come from original */
+            private long boundsMs;
+            public int priority = PRIORITY_VISIBLE;
+            /** position in list image is displayed at, <b>-1</b> if unknown */
+            public int position = -1;
+            /** sampleSize used to decode the original. 0 if image came from {@link DiskCache} */
+            public int sampleSize;
+            /** 
+             * Decoded image, set only if it is bigger than the whole {@link MemoryCache} and is not there. 
+             * Listeners should fall back to it when cache misses, otherwise they would request it forever 
+             */
+            public volatile Object image;
+            
+            /** Cancels request for everybody. Image won't be decoded if it is still in queue. Listeners won't be notified */
+            public void cancel() {
+                loader.cancel(this, null);
+            }
+            
+            /** 
+             * Unsubscribes listener. Request is cancelled when the last listener is gone
+             * @see #cancel() 
+             */
+            public void cancel(ImageLoadListener listener) {
+                loader.cancel(this, listener);
+            }
+            
+            public boolean isCancelled() {
+                return cancelled;
+            }
         }
 
+        /** 
+         * Binary heap of specs ordered by priority, then by distance from visible range of list, 
+         * then by recency of request. Every spec knows its position in heap, so add, update and remove 
+         * are O(log n). Not thread-safe, guarded by <code>lock</code>
+         */
+        private static class RequestQueue {
+            private ImageSpec[] heap = new ImageSpec[16];
+            private int size;
+            private long sequence;
+            private int firstVisible = -1;
+            private int lastVisible = -1;
+            
+            /** adds spec or, if it is queued already, moves it according to its new priority, position and recency */
+            public void add(ImageSpec spec) {
+                spec.sequence = ++sequence;
+                if (spec.queueIndex != -1) {
+                    int idx = spec.queueIndex;
+                    siftUp(idx);
+                    if (heap[idx] == spec) siftDown(idx);
+                    return;
+                }
+                if (size == heap.length) heap = Arrays.copyOf(heap, size * 2);
+                heap[size] = spec;
+                spec.queueIndex = size;
+                size++;
+                siftUp(size - 1);
+            }
+            
+            /** @return most important spec or <b>null</b> if queue is empty */
+            public ImageSpec peek() {
+                return size == 0 ? null : heap[0];
+            }
+            
+            /** @return most important spec or <b>null</b> if queue is empty */
+            public ImageSpec poll() {
+                if (size == 0) return null;
+                ImageSpec top = heap[0];
+                removeAt(0);
+                return top;
+            }
+            
+            public boolean remove(ImageSpec spec) {
+                int idx = spec.queueIndex;
+                if (idx < 0 || idx >= size || heap[idx] != spec) return false;
+                removeAt(idx);
+                return true;
+            }
+            
+            public int size() {
+                return size;
+            }
+            
+            /** rebuilds heap in O(n) if range has changed */
+            public void setVisibleRange(int firstVisible, int lastVisible) {
+                if (this.firstVisible == firstVisible && this.lastVisible == lastVisible) return;
+                this.firstVisible = firstVisible;
+                this.lastVisible = lastVisible;
+                for (int i = (size >>> 1) - 1; i >= 0; i--) {
+                    siftDown(i);
+                }
+            }
+            
+            private void removeAt(int idx) {
+                ImageSpec removed = heap[idx];
+                removed.queueIndex = -1;
+                size--;
+                if (idx == size) {
+                    heap[size] = null;
+                    return;
+                }
+                ImageSpec last = heap[size];
+                heap[size] = null;
+                heap[idx] = last;
+                last.queueIndex = idx;
+                siftDown(idx);
+                if (heap[idx] == last) siftUp(idx);
+            }
+            
+            private void siftUp(int idx) {
+                ImageSpec spec = heap[idx];
+                while (idx > 0) {
+                    int parent = (idx - 1) >>> 1;
+                    if (!before(spec, heap[parent])) break;
+                    heap[idx] = heap[parent];
+                    heap[idx].queueIndex = idx;
+                    idx = parent;
+                }
+                heap[idx] = spec;
+                spec.queueIndex = idx;
+            }
+            
+            private void siftDown(int idx) {
+                ImageSpec spec = heap[idx];
+                int half = size >>> 1;
+                while (idx < half) {
+                    int child = 2 * idx + 1;
+                    int right = child + 1;
+                    if (right < size && before(heap[right], heap[child])) child = right;
+                    if (!before(heap[child], spec)) break;
+                    heap[idx] = heap[child];
+                    heap[idx].queueIndex = idx;
+                    idx = child;
+                }
+                heap[idx] = spec;
+                spec.queueIndex = idx;
+            }
+            
+            /** @return <b>true</b> if <code>a</code> should be decoded before <code>b</code> */
+            private boolean before(ImageSpec a, ImageSpec b) {
+                if (a.priority != b.priority) return a.priority > b.priority;
+                int distanceA = distance(a.position);
+                int distanceB = distance(b.position);
+                if (distanceA != distanceB) return distanceA < distanceB;
+                return a.sequence > b.sequence;
+            }
+            
+            /** @return how far position is from visible range. Images not bound to list are treated as visible */
+            private int distance(int position) {
+                if (position == -1 || firstVisible == -1) return 0;
+                if (position < firstVisible) return firstVisible - position;
+                if (position > lastVisible)  return position - lastVisible;
+                return 0;
+            }
+        }
+        
+        /** 
+         * Receives timings and counters of image pipeline. See {@link ImageLoader#setMetricsListener(MetricsListener)}. 
+         * All durations are in milliseconds
+         */
+        public interface MetricsListener {
+            /** 
+             * @param queuedMs   - time since spec has been requested or scheduled for retry 
+             * @param queueDepth - specs left in queue ready to be decoded 
+             */
+            public void onDequeued(ImageSpec spec, long queuedMs, int queueDepth);
+            /** 
+             * @param source    - {@link ImageLoader#SOURCE_MEMORY}, {@link ImageLoader#SOURCE_SCALED}, {@link ImageLoader#SOURCE_DISK} 
+             *                    or {@link ImageLoader#SOURCE_ORIGINAL}. Chosen sampleSize is in {@link ImageSpec#sampleSize}  
+             * @param boundsMs  - bounds pass of original, 0 for other sources 
+             * @param decodeMs  - time spent to get pixels, excluding bounds pass 
+             * @param latencyMs - time since image has been requested, including retries  
+             * @param bytes     - memory occupied by result 
+             */
+            public void onDecoded(ImageSpec spec, int source, long boundsMs, long decodeMs, long latencyMs, int bytes);
+            /** decoding with sampleSize failed, will be retried with bigger one if retries are left */
+            public void onOutOfMemory(ImageSpec spec, int sampleSize);
+            public void onCacheHit(Object id);
+            public void onCacheMiss(Object id);
+            public void onCacheEviction(Object id, int bytes);
+        }
+        
+        /** 
+         * Default {@link MetricsListener}. Aggregates timings into {@link Histogram}s and counts cache events, 
+         * so p50/p99 of thumbnail latency could be reported periodically, i.e. <code>Log.i(TAG, metrics.toString())</code>
+         */
+        public static class HistogramMetrics implements MetricsListener {
+            public final Histogram queueTime = new Histogram();
+            public final Histogram boundsTime = new Histogram();
+            public final Histogram decodeTime = new Histogram();
+            /** request to delivery, images from memory included */
+            public final Histogram latency = new Histogram();
+            public final Histogram queueDepth = new Histogram();
+            public final Histogram sampleSize = new Histogram();
+            /** decoded images per source, indexed by {@link ImageLoader#SOURCE_MEMORY} and others */
+            private final AtomicLong[] sources = new AtomicLong[] { new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong() };
+            private final AtomicLong bytesDecoded = new AtomicLong();
+            private final AtomicLong outOfMemoryCount = new AtomicLong();
+            private final AtomicLong hitCount = new AtomicLong();
+            private final AtomicLong missCount = new AtomicLong();
+            private final AtomicLong evictionCount = new AtomicLong();
+            private final AtomicLong evictedBytes = new AtomicLong();
+            
+            public void onDequeued(ImageSpec spec, long queuedMs, int queueDepth) {
+                queueTime.record(queuedMs);
+                this.queueDepth.record(queueDepth);
+            }
+            
+            public void onDecoded(ImageSpec spec, int source, long boundsMs, long decodeMs, long latencyMs, int bytes) {
+                sources[source].incrementAndGet();
+                latency.record(latencyMs);
+                if (source == SOURCE_MEMORY) return;
+                if (source == SOURCE_ORIGINAL) {
+                    boundsTime.record(boundsMs);
+                    sampleSize.record(spec.sampleSize);
+                }
+                decodeTime.record(decodeMs);
+                bytesDecoded.addAndGet(bytes);
+            }
+            
+            public void onOutOfMemory(ImageSpec spec, int sampleSize) {
+                outOfMemoryCount.incrementAndGet();
+            }
+            
+            public void onCacheHit(Object id)  { hitCount.incrementAndGet(); }
+            public void onCacheMiss(Object id) { missCount.incrementAndGet(); }
+            
+            public void onCacheEviction(Object id, int bytes) {
+                evictionCount.incrementAndGet();
+                evictedBytes.addAndGet(bytes);
+            }
+            
+            public long getSourceCount(int source) { return sources[source].get(); }
+            public long getBytesDecoded()          { return bytesDecoded.get(); }
+            public long getOutOfMemoryCount()      { return outOfMemoryCount.get(); }
+            public long getHitCount()              { return hitCount.get(); }
+            public long getMissCount()             { return missCount.get(); }
+            public long getEvictionCount()         { return evictionCount.get(); }
+            public long getEvictedBytes()          { return evictedBytes.get(); }
+            
+            public float getHitRate() {
+                long hits = hitCount.get();
+                long total = hits + missCount.get();
+                return total == 0 ? 0 : 1.0f * hits / total;
+            }
+            
+            public void reset() {
+                queueTime.reset();
+                boundsTime.reset();
+                decodeTime.reset();
+                latency.reset();
+                queueDepth.reset();
+                sampleSize.reset();
+                for (AtomicLong counter : sources) counter.set(0);
+                bytesDecoded.set(0);
+                outOfMemoryCount.set(0);
+                hitCount.set(0);
+                missCount.set(0);
+                evictionCount.set(0);
+                evictedBytes.set(0);
+            }
+            
+            @Override
+            public String toString() {
+                return "HistogramMetrics[latency: " + latency + ", queue: " + queueTime + ", bounds: " + boundsTime + ", decode: " + decodeTime
+                        + ", depth: " + queueDepth + ", sampleSize: " + sampleSize 
+                        + ", sources mem/scaled/disk/original: " + sources[SOURCE_MEMORY] + "/" + sources[SOURCE_SCALED] + "/" + sources[SOURCE_DISK] + "/" + sources[SOURCE_ORIGINAL]
+                        + ", decoded: " + bytesDecoded + " bytes, OOMs: " + outOfMemoryCount 
+                        + ", hits: " + hitCount + ", misses: " + missCount + ", evictions: " + evictionCount + " (" + evictedBytes + " bytes)]";
+            }
+        }
+        
+        /** 
+         * Lock-free histogram of non-negative values. Buckets are exact below 8 and then split every power 
+         * of two into 8 sub-buckets, so percentiles are precise within 12.5% for any range of values 
+         */
+        public static class Histogram {
+            private static final int SUB_BUCKETS = 8;
+            private static final int SUB_BUCKET_BITS = 3;
+            /** values below SUB_BUCKETS go to their own bucket, every next power of two takes SUB_BUCKETS */
+            private final AtomicLongArray buckets = new AtomicLongArray(SUB_BUCKETS * (64 - SUB_BUCKET_BITS + 1));
+            private final AtomicLong count = new AtomicLong();
+            private final AtomicLong sum = new AtomicLong();
+            private final AtomicLong max = new AtomicLong();
+            
+            public void record(long value) {
+                if (value < 0) value = 0;
+                buckets.incrementAndGet(bucketOf(value));
+                count.incrementAndGet();
+                sum.addAndGet(value);
+                long currentMax;
+                while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value));
+            }
+            
+            /** 
+             * @param percentile - [0..1], i.e. 0.99 for p99 
+             * @return the lowest value of bucket percentile falls into, 0 if nothing is recorded 
+             */
+            public long getPercentile(double percentile) {
+                if (percentile < 0 || percentile > 1) throw new IllegalArgumentException("percentile must be in [0..1]. percentile: " + percentile);
+                long total = count.get();
+                if (total == 0) return 0;
+                long target = Math.max(1, (long) Math.ceil(percentile * total));
+                long seen = 0;
+                for (int i = 0; i < buckets.length(); i++) {
+                    seen += buckets.get(i);
+                    if (seen >= target) return lowestValueOf(i);
+                }
+                return max.get();
+            }
+            
+            public long getCount() { return count.get(); }
+            public long getMax()   { return max.get(); }
+            
+            public double getMean() {
+                long total = count.get();
+                return total == 0 ? 0 : 1.0 * sum.get() / total;
+            }
+            
+            public void reset() {
+                for (int i = 0; i < buckets.length(); i++) buckets.set(i, 0);
+                count.set(0);
+                sum.set(0);
+                max.set(0);
+            }
+            
+            private static int bucketOf(long value) {
+                if (value < SUB_BUCKETS) return (int) value;
+                int exponent = 63 - Long.numberOfLeadingZeros(value);     // >= SUB_BUCKET_BITS
+                int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+                return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+            }
+            
+            private static long lowestValueOf(int bucket) {
+                if (bucket < SUB_BUCKETS) return bucket;
+                int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+                long subBucket = bucket % SUB_BUCKETS;
+                return (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+            }
+            
+            @Override
+            public String toString() {
+                return "p50: " + getPercentile(0.5) + ", p99: " + getPercentile(0.99) + ", max: " + max + ", n: " + count;
+            }
+        }
+        
+        /** 
+         * Callbacks are delivered on main thread. Images decoded in a burst are delivered together, 
+         * so listener should only mark its view dirty, i.e. {@link AtlasMessagesList#requestRefresh(AtlasMessagesList.Cell)}
+         */
         public interface ImageLoadListener {
             public void onImageLoaded(ImageSpec spec);
         }
@@ -867,78 +2193,699 @@ public class Atlas {
         public static abstract class InputStreamProvider {
             public abstract InputStream getInputStream();
             public abstract boolean ready();
+            
+            /**
+             * Used to read image header and then decode the image from the same stream, 
+             * without fetching data twice. Override if provider has cheaper way to rewind
+             *  
+             * @return stream marked at its beginning, so it can be reset after reading up to <code>readLimit</code> bytes.
+             *         <b>null</b> if {@link #getInputStream()} returns null 
+             */
+            public BufferedInputStream getRewindableInputStream(int readLimit) {
+                InputStream stream = getInputStream();
+                if (stream == null) return null;
+                BufferedInputStream buffered = stream instanceof BufferedInputStream 
+                        ? (BufferedInputStream) stream : new BufferedInputStream(stream, 16 * 1024);
+                buffered.mark(readLimit);
+                return buffered;
+            }
+            
+            /** 
+             * @return pixel format image should be decoded into, or <b>null</b> for default ARGB_8888. 
+             *         RGB_565 takes half of memory and is good for opaque images, i.e. JPEGs 
+             */
+            public Bitmap.Config getPreferredConfig() {
+                return null;
+            }
+            
+            /** @return length of {@link #getInputStream()} in bytes, or -1 if unknown */
+            public long getSize() {
+                return -1;
+            }
+        }
+        
+        /** 
+         * Hides mark/reset support, so BitmapFactory cannot move the mark we keep to rewind after bounds decoding. 
+         * Closing is ignored as well 
+         */
+        private static class UnmarkableInputStream extends FilterInputStream {
+            UnmarkableInputStream(InputStream in) {
+                super(in);
+            }
+            public boolean markSupported() {
+                return false;
+            }
+            public void mark(int readLimit) {
+            }
+            public void reset() throws IOException {
+                throw new IOException("mark/reset not supported");
+            }
+            public void close() {
+            }
+        }
+        
+        /**
+         * LRU cache of decoded images limited by total byte size of its entries, not by count. 
+         * Bitmaps are measured with {@link Bitmap#getByteCount()}, GIFs by compressed data and their first frame
+         * <p>
+         * Every id can have several {@link Variant}s decoded for different required sizes, i.e. list 
+         * thumbnail and full-screen image. They are evicted independently, and lookup with required 
+         * size returns the smallest variant good enough for it.
+         * <p>
+         * Reads never block: lookups go to {@link ConcurrentHashMap} of immutable variant arrays and recency 
+         * updates are recorded into a buffer which is drained in batches by writers, or by a reader if nobody 
+         * holds evictionLock. Only put/remove/trim are serialized with each other
+         */
+        public static class MemoryCache {
+            /** drain is attempted by reader when buffer grows above this value */
+            private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+            /** further reads are not recorded until buffer is drained. Keeps buffer bounded if writers are busy */
+            private static final int READ_BUFFER_MAX = 128;
+            
+            /** id -> variants sorted by pixel count, smallest first. Arrays are replaced, never modified */
+            private final ConcurrentHashMap<Object, Variant[]> map = new ConcurrentHashMap<Object, Variant[]>(40);
+            /** eviction order. Guarded by evictionLock */
+            private final LinkedHashMap<Variant, Variant> lru = new LinkedHashMap<Variant, Variant>(40, 1f, true);
+            private final ReentrantLock evictionLock = new ReentrantLock();
+            private final ConcurrentLinkedQueue<Variant> readBuffer = new ConcurrentLinkedQueue<Variant>();
+            private final AtomicInteger readBufferSize = new AtomicInteger();
+            
+            private volatile long maxBytes;
+            private volatile long sizeBytes;
+            
+            private final AtomicLong hitCount = new AtomicLong();
+            private final AtomicLong missCount = new AtomicLong();
+            private final AtomicLong evictionCount = new AtomicLong();
+
+            /** set by {@link ImageLoader#setMetricsListener(MetricsListener)} */
+            private volatile MetricsListener metricsListener;
+            
+            public MemoryCache(long maxBytes) {
+                if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive. maxBytes: " + maxBytes);
+                this.maxBytes = maxBytes;
+            }
+            
+            /** 
+             * Safe to call from UI thread, never waits for decoders or eviction
+             * @return the biggest variant of image  
+             */
+            public Object get(Object id) {
+                Variant[] variants = map.get(id);
+                MetricsListener metrics = metricsListener;
+                if (variants == null) {
+                    missCount.incrementAndGet();
+                    if (metrics != null) metrics.onCacheMiss(id);
+                    return null;
+                }
+                Variant biggest = variants[variants.length - 1];
+                hitCount.incrementAndGet();
+                if (metrics != null) metrics.onCacheHit(id);
+                recordAccess(biggest);
+                return biggest.image;
+            }
+            
+            /** 
+             * Safe to call from UI thread, never waits for decoders or eviction
+             * @return the smallest image good enough to display at required size. See {@link Variant#satisfies(int, int)} 
+             */
+            public Object get(Object id, int requiredWidth, int requiredHeight) {
+                return get(id, requiredWidth, requiredHeight, null);
+            }
+            
+            /** 
+             * Safe to call from UI thread, never waits for decoders or eviction
+             * @return the smallest image good enough to display at required size and config. See {@link Variant#satisfies(int, int, Bitmap.Config)} 
+             */
+            public Object get(Object id, int requiredWidth, int requiredHeight, Bitmap.Config config) {
+                Variant variant = getVariant(id, requiredWidth, requiredHeight, config);
+                return variant != null ? variant.image : null;
+            }
+            
+            /** @return the smallest variant good enough to display at required size, or <b>null</b> */
+            public Variant getVariant(Object id, int requiredWidth, int requiredHeight) {
+                return getVariant(id, requiredWidth, requiredHeight, null);
+            }
+            
+            /** @return the smallest variant good enough to display at required size and config, or <b>null</b> */
+            public Variant getVariant(Object id, int requiredWidth, int requiredHeight, Bitmap.Config config) {
+                Variant variant = peekVariant(id, requiredWidth, requiredHeight, config);
+                MetricsListener metrics = metricsListener;
+                if (variant == null) {
+                    missCount.incrementAndGet();
+                    if (metrics != null) metrics.onCacheMiss(id);
+                    return null;
+                }
+                hitCount.incrementAndGet();
+                if (metrics != null) metrics.onCacheHit(id);
+                recordAccess(variant);
+                return variant;
+            }
+            
+            /** 
+             * The same as {@link #getVariant(Object, int, int)}, but doesn't affect hits and recency. 
+             * For checks that are not followed by displaying the image, so they don't skew hit rate  
+             */
+            public Variant peekVariant(Object id, int requiredWidth, int requiredHeight) {
+                return peekVariant(id, requiredWidth, requiredHeight, null);
+            }
+            
+            /** @see #peekVariant(Object, int, int) */
+            public Variant peekVariant(Object id, int requiredWidth, int requiredHeight, Bitmap.Config config) {
+                Variant[] variants = map.get(id);
+                if (variants == null) return null;
+                for (Variant variant : variants) {
+                    if (variant.satisfies(requiredWidth, requiredHeight, config)) return variant;
+                }
+                return null;
+            }
+            
+            /** @return the biggest variant to downscale from, or <b>null</b>. Doesn't affect hits and recency */
+            public Variant getBiggestVariant(Object id) {
+                Variant[] variants = map.get(id);
+                return variants != null ? variants[variants.length - 1] : null;
+            }
+            
+            /** 
+             * Scales bitmap of variant while holding evictionLock, so source isn't evicted meanwhile
+             *  
+             * @return scaled bitmap or <b>null</b> if source is evicted already or memory is not enough 
+             */
+            public Bitmap createScaledBitmap(Variant source, int width, int height) {
+                if (!(source.image instanceof Bitmap)) throw new IllegalArgumentException("Only bitmaps can be scaled. source: " + source);
+                evictionLock.lock();
+                try {
+                    if (lru.get(source) == null) return null;
+                    return Bitmap.createScaledBitmap((Bitmap) source.image, width, height, true);
+                } catch (OutOfMemoryError e) {
+                    if (debug) Log.w(TAG, "createScaledBitmap() out of memory. " + source + " to " + width + "x" + height);
+                    return null;
+                } finally {
+                    evictionLock.unlock();
+                }
+            }
+            
+            private void recordAccess(Variant variant) {
+                int buffered = readBufferSize.get();
+                if (buffered < READ_BUFFER_MAX) {
+                    readBuffer.offer(variant);
+                    buffered = readBufferSize.incrementAndGet();
+                }
+                if (buffered >= READ_BUFFER_DRAIN_THRESHOLD && evictionLock.tryLock()) {
+                    try {
+                        drainReadBuffer();
+                    } finally {
+                        evictionLock.unlock();
+                    }
+                }
+            }
+            
+            /** applies buffered reads to eviction order. Must be called with evictionLock held */
+            private void drainReadBuffer() {
+                Variant variant;
+                while ((variant = readBuffer.poll()) != null) {
+                    readBufferSize.decrementAndGet();
+                    // LinkedHashMap.get() moves entry to the tail. Variants evicted since read are not there anymore 
+                    lru.get(variant);
+                }
+            }
+            
+            /** puts image as the only full-size variant */
+            public boolean put(Object id, Object image) {
+                return put(id, image, 0, 0, 0, 0, false);
+            }
+            
+            /** 
+             * Adds variant of image. Variant of the same dimensions is replaced
+             * 
+             * @param originalWidth  - dimensions of image before downsampling, 0 if unknown  
+             * @param requiredWidth  - dimensions image has been decoded for, 0 means original  
+             * @param degraded       - image is smaller than required. Replaced by the first proper variant for the same size
+             * @return <b>false</b> if image is bigger than the whole cache and hasn't been stored
+             */
+            public boolean put(Object id, Object image, int originalWidth, int originalHeight, int requiredWidth, int requiredHeight, boolean degraded) {
+                int bytes = sizeOf(image);
+                if (bytes > maxBytes) {
+                    if (debug) Log.w(TAG, "put() image is bigger than whole cache, skipped. bytes: " + bytes + ", id: " + id);
+                    return false;
+                }
+                Variant variant = new Variant(id, image, bytes, originalWidth, originalHeight, requiredWidth, requiredHeight, degraded);
+                evictionLock.lock();
+                try {
+                    drainReadBuffer();
+                    Variant[] variants = map.get(id);
+                    if (variants != null) {
+                        for (Variant existing : variants) {
+                            // RGB_565 thumbnail doesn't replace ARGB_8888 image of the same size
+                            boolean sameSize = existing.width == variant.width && existing.height == variant.height 
+                                    && coversConfig(variant.config, existing.config);
+                            boolean upgraded = existing.degraded && !degraded && variant.satisfies(existing.requiredWidth, existing.requiredHeight, existing.config);
+                            if (sameSize || upgraded) removeVariant(existing);
+                        }
+                    }
+                    addVariant(variant);
+                    trimToSize(maxBytes);
+                } finally {
+                    evictionLock.unlock();
+                }
+                return true;
+            }
+            
+            /** Removes all variants of image. @return the biggest removed image */
+            public Object remove(Object id) {
+                evictionLock.lock();
+                try {
+                    Variant[] removed = map.get(id);
+                    if (removed == null) return null;
+                    for (Variant variant : removed) {
+                        removeVariant(variant);
+                    }
+                    return removed[removed.length - 1].image;
+                } finally {
+                    evictionLock.unlock();
+                }
+            }
+            
+            /** Must be called with evictionLock held */
+            private void addVariant(Variant variant) {
+                Variant[] variants = map.get(variant.id);
+                int length = variants != null ? variants.length : 0;
+                Variant[] updated = new Variant[length + 1];
+                int to = 0;
+                for (int from = 0; from < length; from++) {
+                    if (to == from && variants[from].pixels() > variant.pixels()) updated[to++] = variant;
+                    updated[to++] = variants[from];
+                }
+                if (to == length) updated[to] = variant;
+                map.put(variant.id, updated);
+                lru.put(variant, variant);
+                sizeBytes += variant.bytes;
+            }
+            
+            /** Must be called with evictionLock held */
+            private void removeVariant(Variant variant) {
+                if (lru.remove(variant) == null) return;
+                sizeBytes -= variant.bytes;
+                Variant[] variants = map.get(variant.id);
+                if (variants.length == 1) {
+                    map.remove(variant.id);
+                    return;
+                }
+                Variant[] updated = new Variant[variants.length - 1];
+                int to = 0;
+                for (Variant existing : variants) {
+                    if (existing != variant) updated[to++] = existing;
+                }
+                map.put(variant.id, updated);
+            }
+            
+            /** Evicts least recently used variants until cache size is lower or equal to <code>bytes</code> */
+            public void trimToSize(long bytes) {
+                evictionLock.lock();
+                try {
+                    drainReadBuffer();
+                    while (sizeBytes > bytes && lru.size() > 0) {
+                        Variant eldest = lru.keySet().iterator().next();
+                        removeVariant(eldest);
+                        evictionCount.incrementAndGet();
+                        MetricsListener metrics = metricsListener;
+                        if (metrics != null) metrics.onCacheEviction(eldest.id, eldest.bytes);
+                        if (debug) Log.w(TAG, "trimToSize() evicted: " + eldest + ", size: " + sizeBytes + " of " + maxBytes);
+                    }
+                } finally {
+                    evictionLock.unlock();
+                }
+            }
+            
+            public void setMaxBytes(long maxBytes) {
+                if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive. maxBytes: " + maxBytes);
+                this.maxBytes = maxBytes;
+                trimToSize(maxBytes);
+            }
+            
+            public long getMaxBytes()      { return maxBytes; }
+            public long getSize()          { return sizeBytes; }
+            /** @return number of images, variants of the same image are counted once */
+            public int size()              { return map.size(); }
+            public long getHitCount()      { return hitCount.get(); }
+            public long getMissCount()     { return missCount.get(); }
+            public long getEvictionCount() { return evictionCount.get(); }
+            
+            /** @return size in bytes of Bitmap or GIFImage. 0 for unknown objects */
+            public static int sizeOf(Object image) {
+                if (image instanceof Bitmap) return ((Bitmap) image).getByteCount();
+                if (image instanceof GIFImage) return ((GIFImage) image).getByteCount();   // playing frames belong to drawables
+                return 0;
+            }
+            
+            @Override
+            public String toString() {
+                return "MemoryCache[" + map.size() + " images, " + sizeBytes + " of " + maxBytes + " bytes, hits: " + hitCount 
+                        + ", misses: " + missCount + ", evictions: " + evictionCount + "]";
+            }
+            
+            /** Image decoded for particular required size. Identity is used as key in eviction order */
+            public static final class Variant {
+                public final Object id;
+                public final Object image;
+                public final int width;
+                public final int height;
+                /** 0 if unknown, i.e. image came from {@link DiskCache} */
+                public final int originalWidth;
+                public final int originalHeight;
+                /** size image has been decoded for, 0 means original */
+                public final int requiredWidth;
+                public final int requiredHeight;
+                /** smaller than required because of OutOfMemoryError */
+                public final boolean degraded;
+                /** pixel format of bitmap, <b>null</b> for GIFs */
+                public final Bitmap.Config config;
+                final int bytes;
+                
+                Variant(Object id, Object image, int bytes, int originalWidth, int originalHeight, int requiredWidth, int requiredHeight, boolean degraded) {
+                    this.id = id;
+                    this.image = image;
+                    this.bytes = bytes;
+                    this.width  = image instanceof GIFImage ? ((GIFImage) image).getFrameWidth()  : image instanceof Bitmap ? ((Bitmap) image).getWidth()  : 0;
+                    this.height = image instanceof GIFImage ? ((GIFImage) image).getFrameHeight() : image instanceof Bitmap ? ((Bitmap) image).getHeight() : 0;
+                    this.originalWidth = originalWidth;
+                    this.originalHeight = originalHeight;
+                    this.requiredWidth = requiredWidth;
+                    this.requiredHeight = requiredHeight;
+                    this.degraded = degraded;
+                    this.config = image instanceof Bitmap ? ((Bitmap) image).getConfig() : null;
+                }
+                
+                /** 
+                 * @return <b>true</b> if variant is full resolution, has been decoded for the same or bigger 
+                 * size, or is simply not smaller than required. 0 required dimension means original 
+                 */
+                public boolean satisfies(int requiredWidth, int requiredHeight) {
+                    if (originalWidth > 0 && width >= originalWidth && height >= originalHeight) return true;
+                    if (covers(this.requiredWidth, requiredWidth) && covers(this.requiredHeight, requiredHeight)) return true;
+                    return requiredWidth > 0 && requiredHeight > 0 && width >= requiredWidth && height >= requiredHeight;
+                }
+                
+                /** 
+                 * @param config - pixel format variant must be at least as good as, i.e. RGB_565 variant doesn't satisfy 
+                 *                 ARGB_8888. <b>null</b> accepts any 
+                 * @see #satisfies(int, int)
+                 */
+                public boolean satisfies(int requiredWidth, int requiredHeight, Bitmap.Config config) {
+                    return coversConfig(this.config, config) && satisfies(requiredWidth, requiredHeight);
+                }
+                
+                int pixels() {
+                    return width * height;
+                }
+                
+                @Override
+                public String toString() {
+                    return "Variant[" + id + ", " + width + "x" + height + (config != null ? " " + config : "") + " of " + originalWidth + "x" + originalHeight 
+                            + ", req: " + requiredWidth + "x" + requiredHeight + ", " + bytes + " bytes" + (degraded ? ", degraded" : "") + "]";
+                }
+            }
+        }
+        
+        /** @return <b>true</b> if image decoded for <code>decodedFor</code> dimension is good for <code>required</code>. 0 means original */
+        private static boolean covers(int decodedFor, int required) {
+            return decodedFor == 0 || (required != 0 && required <= decodedFor);
+        }
+        
+        /** 
+         * @return <b>true</b> if image of <code>decoded</code> pixel format is good for <code>required</code> one. ARGB_8888 is good 
+         *         for anything. <b>null</b> decoded means unknown or not a bitmap, <b>null</b> required accepts any format 
+         */
+        private static boolean coversConfig(Bitmap.Config decoded, Bitmap.Config required) {
+            return required == null || decoded == null || decoded == required || decoded == Bitmap.Config.ARGB_8888;
+        }
+        
+        /** @return pixel format spec is decoded into */
+        private static Bitmap.Config decodedConfig(ImageSpec spec) {
+            return spec.config != null ? spec.config : Bitmap.Config.ARGB_8888;
         }
     }
 
+    /**
+     * Downloads files over HTTP with a pool of worker threads. Simultaneous downloads are limited 
+     * globally and per host, so one slow server doesn't occupy every worker. Entry with the highest 
+     * priority and a free host slot goes first. Among equal priorities the most recently scheduled wins.
+     * Failed downloads are retried with exponential backoff, resuming partially downloaded files
+     */
     public static class DownloadQueue {
         private static final String TAG = DownloadQueue.class.getSimpleName();
+        private static final boolean debug = false;
+        
+        /** Files nobody is waiting for yet, i.e. content of cells about to be scrolled into view */
+        public static final int PRIORITY_BACKGROUND = 0;
+        /** Default priority. Files displayed on screen */
+        public static final int PRIORITY_VISIBLE = 1;
+        
+        public static final int DEFAULT_MAX_DOWNLOADS = 4;
+        public static final int DEFAULT_MAX_DOWNLOADS_PER_HOST = 2;
+        /** failed download is retried this many times, resuming from where it stopped */
+        public static final int DOWNLOAD_RETRIES = 5;
+        /** delay before the first retry, doubled after every failure */
+        public static final long RETRY_BACKOFF_MS = 1000;
+        public static final long RETRY_BACKOFF_MAX_MS = 60 * 1000;
         
         final ArrayList<Entry> queue = new ArrayList<Atlas.DownloadQueue.Entry>();
         final HashMap<String, Entry> url2Entry = new HashMap<String, Entry>();
-        private volatile Entry inProgress = null;
+        /** url -> entry being downloaded. Guarded by <code>queue</code> */
+        private final HashMap<String, Entry> inProgress = new HashMap<String, Entry>();
+        /** host -> number of downloads in progress. Guarded by <code>queue</code> */
+        private final HashMap<String, Integer> activePerHost = new HashMap<String, Integer>();
+        private final ArrayList<Thread> workers = new ArrayList<Thread>();
+        private int maxDownloads;
+        private int maxDownloadsPerHost;
+        private long sequence = 0;
         
         public DownloadQueue() {
-            workingThread.setDaemon(true);
-            workingThread.setName("Atlas-HttpDownloadQueue"); 
-            workingThread.start();
+            this(DEFAULT_MAX_DOWNLOADS, DEFAULT_MAX_DOWNLOADS_PER_HOST);
         }
         
-        public void schedule(String url, File to, CompleteListener onComplete) {
-            if (inProgress != null && inProgress.url.equals(url)){
-                return;
+        public DownloadQueue(int maxDownloads, int maxDownloadsPerHost) {
+            setConcurrency(maxDownloads, maxDownloadsPerHost);
+        }
+        
+        /** 
+         * Changes number of simultaneous downloads. Extra workers quit after their current download, 
+         * missing workers are started immediately
+         * 
+         * @param maxDownloads          - downloads in parallel, all hosts together 
+         * @param maxDownloadsPerHost   - downloads in parallel from the same host
+         */
+        public void setConcurrency(int maxDownloads, int maxDownloadsPerHost) {
+            if (maxDownloads < 1) throw new IllegalArgumentException("At least one download is required. maxDownloads: " + maxDownloads);
+            if (maxDownloadsPerHost < 1) throw new IllegalArgumentException("At least one download per host is required. maxDownloadsPerHost: " + maxDownloadsPerHost);
+            synchronized (queue) {
+                this.maxDownloads = maxDownloads;
+                this.maxDownloadsPerHost = maxDownloadsPerHost;
+                while (workers.size() < maxDownloads) {
+                    Thread worker = new Thread(downloader, "Atlas-HttpDownloadQueue-" + workers.size());
+                    worker.setDaemon(true);
+                    workers.add(worker);
+                    worker.start();
+                }
+                queue.notifyAll();  // let extra workers quit, and others check new host limit
             }
+        }
+        
+        public Entry schedule(String url, File to, CompleteListener onComplete) {
+            return schedule(url, to, PRIORITY_VISIBLE, onComplete);
+        }
+        
+        /** 
+         * Requests of the same url share one download, and every listener is notified when it completes
+         * 
+         * @param priority   - {@link #PRIORITY_BACKGROUND} or {@link #PRIORITY_VISIBLE}. Repeated schedule of 
+         *                     the same url never lowers priority of already queued entry
+         * @param onComplete - called on download thread. Could be null
+         * @return handle to {@link Entry#cancel(CompleteListener)} download when it's not needed anymore
+         */
+        public Entry schedule(String url, File to, int priority, CompleteListener onComplete) {
             synchronized (queue) {
-                Entry existing = url2Entry.get(url);
-                if (existing != null) {
-                    queue.remove(existing);
-                    queue.add(existing);
+                Entry entry = inProgress.get(url);
+                if (entry == null || entry.cancelled) entry = url2Entry.get(url);
+                if (entry != null) {
+                    entry.priority = Math.max(entry.priority, priority);
+                    entry.sequence = sequence++;
                 } else {
-                    Entry toSchedule = new Entry(url, to, onComplete);
-                    queue.add(toSchedule);
-                    url2Entry.put(toSchedule.url, toSchedule);
+                    entry = new Entry(this, url, to);
+                    entry.priority = priority;
+                    entry.sequence = sequence++;
+                    queue.add(entry);
+                    url2Entry.put(entry.url, entry);
                 }
+                if (onComplete != null && !entry.listeners.contains(onComplete)) entry.listeners.add(onComplete);
                 queue.notifyAll();
+                return entry;
+            }
+        }
+        
+        /** 
+         * Unsubscribes listener. Download nobody listens to anymore is removed from queue, or aborted if 
+         * it's in progress already. Partially downloaded file is kept to be resumed next time
+         * 
+         * @param listener - listener to remove, or <b>null</b> to cancel download for everybody  
+         */
+        private void cancel(Entry entry, CompleteListener listener) {
+            HttpGet request = null;
+            synchronized (queue) {
+                if (entry.cancelled) return;
+                if (listener != null) {
+                    entry.listeners.remove(listener);
+                    if (entry.listeners.size() > 0) return;
+                }
+                entry.listeners.clear();
+                entry.cancelled = true;
+                if (url2Entry.get(entry.url) == entry) {
+                    queue.remove(entry);
+                    url2Entry.remove(entry.url);
+                }
+                request = entry.request;
+            }
+            if (request != null) request.abort();  // worker gets IOException and drops the entry
+            if (debug) Log.w(TAG, "cancel() " + (request != null ? "aborted: " : "removed: ") + entry.url);
+        }
+        
+        /** 
+         * @return the most important entry whose host has a free slot and backoff is over, or null. 
+         *         Must be called with <code>queue</code> lock held 
+         */
+        private Entry pollNext() {
+            long now = SystemClock.uptimeMillis();
+            int best = -1;
+            for (int i = 0; i < queue.size(); i++) {
+                Entry entry = queue.get(i);
+                if (entry.notBefore > now) continue;
+                if (inProgress.containsKey(entry.url)) continue;    // cancelled download of the same file is still aborting
+                if (activeDownloads(entry.host) >= maxDownloadsPerHost) continue;
+                if (best == -1 || entry.priority > queue.get(best).priority 
+                        || (entry.priority == queue.get(best).priority && entry.sequence > queue.get(best).sequence)) {
+                    best = i;
+                }
             }
+            if (best == -1) return null;
+            Entry next = queue.remove(best);
+            url2Entry.remove(next.url);
+            return next;
         }
         
-        private Thread workingThread = new Thread(new Runnable() {
+        /** 
+         * @return millis until the earliest retry is due, 0 if no retry is waiting for its backoff. 
+         *         Due retries blocked by host limit are woken by the download that frees the slot. 
+         *         Must be called with <code>queue</code> lock held 
+         */
+        private long nextRetryDelay() {
+            long now = SystemClock.uptimeMillis();
+            long earliest = Long.MAX_VALUE;
+            for (Entry entry : queue) {
+                if (entry.notBefore > now) earliest = Math.min(earliest, entry.notBefore);
+            }
+            if (earliest == Long.MAX_VALUE) return 0;
+            return earliest - now;
+        }
+        
+        private int activeDownloads(String host) {
+            Integer active = activePerHost.get(host);
+            return active != null ? active : 0;
+        }
+        
+        private final Runnable downloader = new Runnable() {
             public void run() {
                 while (true) {
                     Entry next = null;
                     synchronized (queue) {
-                        while (queue.size() == 0) {
+                        while (true) {
+                            if (workers.size() > maxDownloads) {
+                                workers.remove(Thread.currentThread());
+                                return;
+                            }
+                            if ((next = pollNext()) != null) break;
                             try {
-                                queue.wait();
+                                queue.wait(nextRetryDelay());
                             } catch (InterruptedException ignored) {}
                         }
-                        next = queue.remove(queue.size() - 1); // get last
-                        url2Entry.remove(next.url);
-                        inProgress = next;
+                        inProgress.put(next.url, next);
+                        activePerHost.put(next.host, activeDownloads(next.host) + 1);
+                        next.request = new HttpGet(next.url);
+                        if (debug) Log.w(TAG, "run() downloading: " + next.url + ", queue: " + queue.size() + ", in progress: " + inProgress.size());
                     }
-                    try {
-                        if (Tools.downloadHttpToFile(next.url, next.file)) {
-                            if (next.completeListener != null) {
-                                next.completeListener.onDownloadComplete(next.url, next.file);
-                            }
-                        };
-                    } catch (Throwable e) {
-                        Log.e(TAG, "onComplete() thrown an exception for: " + next.url, e);
+                    boolean downloaded = Tools.downloadHttpToFile(next.request, next.file);
+                    ArrayList<CompleteListener> listeners;
+                    synchronized (queue) {
+                        inProgress.remove(next.url);
+                        next.request = null;
+                        listeners = new ArrayList<CompleteListener>(next.listeners);
+                        if (!downloaded && !next.cancelled && next.retries < DOWNLOAD_RETRIES) {
+                            // partial file is kept, next attempt continues from where this one stopped
+                            next.notBefore = SystemClock.uptimeMillis() + Math.min(RETRY_BACKOFF_MS << next.retries, RETRY_BACKOFF_MAX_MS);
+                            next.retries++;
+                            queue.add(next);
+                            url2Entry.put(next.url, next);
+                            if (debug) Log.w(TAG, "run() retry " + next.retries + " of " + DOWNLOAD_RETRIES + " for: " + next.url);
+                        }
+                        int active = activeDownloads(next.host) - 1;
+                        if (active > 0) {
+                            activePerHost.put(next.host, active);
+                        } else {
+                            activePerHost.remove(next.host);
+                        }
+                        queue.notifyAll();  // host slot is free
+                    }
+                    if (!downloaded) continue;
+                    for (CompleteListener listener : listeners) {
+                        try {
+                            listener.onDownloadComplete(next.url, next.file);
+                        } catch (Throwable e) {
+                            Log.e(TAG, "onComplete() thrown an exception for: " + next.url, e);
+                        }
                     }
-                    inProgress = null;
                 }
             }
-        });
+        };
         
-        private static class Entry {
-            String url;
-            File file;
-            CompleteListener completeListener;
-            public Entry(String url, File file, CompleteListener listener) {
+        /** 
+         * Handle of scheduled download. Returned by schedule(), could be used to cancel it. 
+         * Downloads of the same url share one entry 
+         */
+        public static class Entry {
+            private final DownloadQueue downloadQueue;
+            public final String url;
+            /** empty if url has no host */
+            final String host;
+            public final File file;
+            /** guarded by queue */
+            private final ArrayList<CompleteListener> listeners = new ArrayList<CompleteListener>(2);
+            int priority;
+            /** order of the latest schedule() */
+            long sequence;
+            /** failed attempts so far */
+            int retries;
+            /** {@link SystemClock#uptimeMillis()} entry is not downloaded before, 0 if not delayed */
+            long notBefore;
+            /** request in progress, aborted by cancel(). Guarded by queue */
+            private HttpGet request;
+            private boolean cancelled;
+            
+            private Entry(DownloadQueue downloadQueue, String url, File file) {
                 if (url == null) throw new IllegalArgumentException("url cannot be null");
                 if (file == null) throw new IllegalArgumentException("file cannot be null");
+                this.downloadQueue = downloadQueue;
                 this.url = url;
+                String host = Uri.parse(url).getHost();
+                this.host = host != null ? host : "";
                 this.file = file;
-                this.completeListener = listener;
+            }
+            
+            /** Cancels download for all listeners */
+            public void cancel() {
+                downloadQueue.cancel(this, null);
+            }
+            
+            /** Unsubscribes listener. Download is cancelled when no listeners remain */
+            public void cancel(CompleteListener listener) {
+                downloadQueue.cancel(this, listener);
             }
         }
         
@@ -947,11 +2894,203 @@ public class Atlas {
         }
     }
 
+    /**
+     * Files in a directory limited by their total size. Least recently used files are deleted 
+     * when limit is exceeded. <p>
+     * 
+     * Index is kept in memory and built from directory listing on first access, so lookups don't 
+     * touch file system. Recency is not persisted: after restart files are ordered by write time. 
+     * Partial downloads of {@link Tools#downloadHttpToFile(String, File)} may share the directory: 
+     * they are not indexed and are kept to be resumed
+     */
+    public static class DiskCache {
+        private static final String TAG = DiskCache.class.getSimpleName();
+        private static final boolean debug = false;
+        /** distinct from {@link Tools#DOWNLOAD_TEMP_SUFFIX}: partial downloads in the same dir are resumable and kept */
+        private static final String TEMP_SUFFIX = ".writing";
+        /** partial downloads untouched for this long are not going to be resumed */
+        private static final long STALE_DOWNLOAD_MS = 24 * 60 * 60 * 1000;
+        
+        private final File dir;
+        private volatile long maxBytes;
+        /** file name -> length. Access ordered. null until first access */
+        private LinkedHashMap<String, Long> index;
+        private long sizeBytes;
+        
+        public DiskCache(File dir, long maxBytes) {
+            if (dir == null) throw new IllegalArgumentException("dir cannot be null");
+            if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive. maxBytes: " + maxBytes);
+            this.dir = dir;
+            this.maxBytes = maxBytes;
+        }
+        
+        private void ensureIndex() {
+            if (index != null) return;
+            long started = System.currentTimeMillis();
+            index = new LinkedHashMap<String, Long>(64, 1f, true);
+            sizeBytes = 0;
+            if (!dir.exists() && !dir.mkdirs()) {
+                Log.e(TAG, "ensureIndex() cannot create dir: " + dir);
+                return;
+            }
+            File[] files = dir.listFiles();
+            if (files == null) return;
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File lhs, File rhs) {
+                    long l = lhs.lastModified(), r = rhs.lastModified();
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {                         // interrupted put()
+                    file.delete();
+                    continue;
+                }
+                if (file.getName().endsWith(Tools.DOWNLOAD_TEMP_SUFFIX)             // partial download, maybe in progress
+                        || file.getName().endsWith(Tools.DOWNLOAD_VALIDATOR_SUFFIX)) {
+                    if (started - file.lastModified() > STALE_DOWNLOAD_MS) file.delete();
+                    continue;
+                }
+                index.put(file.getName(), file.length());
+                sizeBytes += file.length();
+            }
+            trim();
+            if (debug) Log.w(TAG, "ensureIndex() loaded " + index.size() + " files, " + sizeBytes + " bytes in " + (System.currentTimeMillis() - started) + "ms");
+        }
+        
+        /** 
+         * @return file stored for the key, or <b>null</b> if there is no such file. File could be deleted 
+         * behind cache's back, i.e. when system clears cache dir: reader failing to open it should {@link #remove(String)} the key 
+         */
+        public synchronized File get(String key) {
+            ensureIndex();
+            String name = fileName(key);
+            if (index.get(name) == null) return null;
+            return new File(dir, name);
+        }
+        
+        public synchronized boolean contains(String key) {
+            ensureIndex();
+            return index.containsKey(fileName(key));
+        }
+        
+        /** 
+         * @return where the file for the key should be written. Call {@link #commit(String)} 
+         * after writing to account it in cache size 
+         */
+        public File getFile(String key) {
+            return new File(dir, fileName(key));
+        }
+        
+        /** Registers file written into {@link #getFile(String)} and removes old files if needed */
+        public synchronized void commit(String key) {
+            ensureIndex();
+            String name = fileName(key);
+            File file = new File(dir, name);
+            if (!file.exists()) {
+                Log.e(TAG, "commit() file doesn't exist: " + file);
+                return;
+            }
+            Long previous = index.put(name, file.length());
+            if (previous != null) sizeBytes -= previous;
+            sizeBytes += file.length();
+            trim();
+        }
+        
+        /** Compresses bitmap into temp file and commits it under the key */
+        public boolean put(String key, Bitmap bmp, Bitmap.CompressFormat format, int quality) {
+            synchronized (this) {
+                ensureIndex();
+            }
+            File file = getFile(key);
+            File tempFile = new File(file.getAbsolutePath() + TEMP_SUFFIX);
+            OutputStream os = null;
+            try {
+                os = new BufferedOutputStream(new FileOutputStream(tempFile), 16 * 1024);
+                if (!bmp.compress(format, quality, os)) {
+                    Tools.closeQuietly(os);
+                    tempFile.delete();
+                    return false;
+                }
+                os.close();
+            } catch (IOException e) {
+                Log.e(TAG, "put() cannot write " + tempFile, e);
+                Tools.closeQuietly(os);
+                tempFile.delete();
+                return false;
+            }
+            if (!tempFile.renameTo(file)) {
+                Log.e(TAG, "put() cannot rename " + tempFile + " to " + file);
+                tempFile.delete();
+                return false;
+            }
+            commit(key);
+            return true;
+        }
+        
+        public synchronized void remove(String key) {
+            ensureIndex();
+            String name = fileName(key);
+            Long length = index.remove(name);
+            if (length != null) sizeBytes -= length;
+            new File(dir, name).delete();
+        }
+        
+        public synchronized void setMaxBytes(long maxBytes) {
+            if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive. maxBytes: " + maxBytes);
+            this.maxBytes = maxBytes;
+            if (index != null) trim();
+        }
+        
+        private void trim() {
+            Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+            while (sizeBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                it.remove();
+                sizeBytes -= eldest.getValue();
+                new File(dir, eldest.getKey()).delete();
+                if (debug) Log.w(TAG, "trim() removed: " + eldest.getKey() + ", size: " + sizeBytes + " of " + maxBytes);
+            }
+        }
+        
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+        
+        public synchronized long getSize() {
+            ensureIndex();
+            return sizeBytes;
+        }
+        
+        public File getDir() {
+            return dir;
+        }
+        
+        private static String fileName(String key) {
+            return Tools.escapePath(key);
+        }
+        
+        @Override
+        public synchronized String toString() {
+            return "DiskCache[" + dir + ", " + (index != null ? index.size() + " files, " + sizeBytes : "not loaded,") + " of " + maxBytes + " bytes]";
+        }
+    }
+
+    /** 
+     * Provides messagePart.dataStream. JPEG parts are decoded to RGB_565 unless other 
+     * config is passed to constructor  
+     */
     public static class MessagePartStreamProvider extends ImageLoader.InputStreamProvider {
         public final MessagePart part;
+        private final Bitmap.Config config;
         public MessagePartStreamProvider(MessagePart part) {
+            this(part, isOpaque(part) ? Bitmap.Config.RGB_565 : null);
+        }
+        /** @param config - pixel format to decode into, <b>null</b> for ARGB_8888 */
+        public MessagePartStreamProvider(MessagePart part, Bitmap.Config config) {
             if (part == null) throw new IllegalStateException("MessagePart cannot be null");
             this.part = part;
+            this.config = config;
         }
         public InputStream getInputStream() {
             return part.getDataStream();
@@ -959,13 +3098,20 @@ public class Atlas {
         public boolean ready() {
             return part.isContentReady();
         }
+        public Bitmap.Config getPreferredConfig() {
+            return config;
+        }
+        /** JPEG has no alpha channel, PNG and GIF may have */
+        private static boolean isOpaque(MessagePart part) {
+            return MIME_TYPE_IMAGE_JPEG.equals(part.getMimeType()) || MIME_TYPE_IMAGE_JPEG_PREVIEW.equals(part.getMimeType());
+        }
     }
     
     /** 
-     * Provides BufferedInputStream on top of messagePart.dataStream, with 16k buffer 
-     * and mark set to 0 with 16k read limit. <p>
+     * Provides BufferedInputStream on top of messagePart.dataStream, with 16k buffer. <p>
      * 
-     * Used for GIF purposes, because it calls <code>.reset()</code> stream during execution
+     * Used for GIF purposes: {@link GIFImage#read(InputStream)} reads the whole part in one pass,  
+     * so stream is not marked. Marking the whole part would keep another copy of it in buffer
      */
     public static class MessagePartBufferedStreamProvider extends ImageLoader.InputStreamProvider {
         public final MessagePart part;
@@ -974,13 +3120,14 @@ public class Atlas {
             this.part = part;
         }
         public InputStream getInputStream() {
-            BufferedInputStream stream = new BufferedInputStream(part.getDataStream(), 16 * 1024);
-            stream.mark(16 * 1024);
-            return stream;
+            return new BufferedInputStream(part.getDataStream(), 16 * 1024);
         }
         public boolean ready() {
             return part.isContentReady();
         }
+        public long getSize() {
+            return part.getSize();
+        }
     }
 
     public static class FileStreamProvider extends ImageLoader.InputStreamProvider {
@@ -1002,6 +3149,9 @@ public class Atlas {
             if (ImageLoader.debug) Log.w(ImageLoader.TAG, "ready() FileStreamProvider, file ready: " + file.getAbsolutePath());
             return true;
         }
+        public long getSize() {
+            return file.length();
+        }
     }
 
     /** 
@@ -36,8 +36,6 @@ public class AtlasImageView extends View {
     private static final String TAG = AtlasImageView.class.getSimpleName();
     private static final boolean debug = false;
     
-    private int defaultLayerType;
-    
     private Drawable drawable;
     
     private int contentWidth;
@@ -53,17 +51,14 @@ public class AtlasImageView extends View {
     //----------------------------------------------------------------------------
     public AtlasImageView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
-        setupPaints();
     }
 
     public AtlasImageView(Context context, AttributeSet attrs) {
         super(context, attrs);
-        setupPaints();
     }
 
     public AtlasImageView(Context context) {
         super(context);
-        setupPaints();
     }
     
     protected void onMeasure(int widthSpec, int heightSpec) {
@@ -116,10 +111,6 @@ public class AtlasImageView extends View {
         if (debug) Log.w(TAG, "onSizeChanged() w: " + w + " h: " + h+ " oldw: " + oldw+ " oldh: " + oldh);
     }
 
-    private void setupPaints() {
-        this.defaultLayerType = getLayerType();
-    }
-    
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
         
@@ -219,21 +210,30 @@ public class AtlasImageView extends View {
     }
     
     public void setDrawable(Drawable drawable) {
-        if (this.drawable != null) {
+        if (this.drawable != null && this.drawable != drawable) {
             this.drawable.setCallback(null);
+            this.drawable.setVisible(false, false);     // stops animation
         }
         this.drawable = drawable;
         if (drawable != null) {
             this.drawable.setCallback(this);
-        }
-        if (drawable instanceof GIFDrawable) {
-            setLayerType(LAYER_TYPE_SOFTWARE, null);
-        } else {
-            setLayerType(defaultLayerType, null);
+            this.drawable.setVisible(getWindowToken() != null && getVisibility() == VISIBLE, false);
         }
         invalidate();
     }
     
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (drawable != null) drawable.setVisible(getVisibility() == VISIBLE, false);
+    }
+    
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (drawable != null) drawable.setVisible(false, false);
+    }
+    
     public void setContentDimensions(int contentWidth, int contentHeight) {
         boolean requestLayout = false;
         if (this.contentWidth != contentWidth || this.contentHeight != contentHeight) {
@@ -45,9 +45,6 @@ public class AtlasImageView2 extends View {
     private static final boolean debug = false;
     private static final boolean debugOutline = false;
     
-    /** Backup for type that could be switched to SOFTWARE in order to render GIFs. */
-    private int defaultLayerType;
-    
     private Drawable drawable;
     
     private int contentWidth;
@@ -135,7 +132,6 @@ public class AtlasImageView2 extends View {
     }
 
     private void setupPaints() {
-        this.defaultLayerType = getLayerType();
         debugTextPaint.setTextSize(Tools.getPxFromDp(10, getContext()));
     }
     
@@ -567,22 +563,31 @@ public class AtlasImageView2 extends View {
     }
     
     public void setDrawable(Drawable drawable) {
-        if (this.drawable != null) {
+        if (this.drawable != null && this.drawable != drawable) {
             this.drawable.setCallback(null);
+            this.drawable.setVisible(false, false);     // stops animation
         }
         this.drawable = drawable;
         if (drawable != null) {
             this.drawable.setCallback(this);
-        }
-        if (drawable instanceof GIFDrawable) {
-            setLayerType(LAYER_TYPE_SOFTWARE, null);
-        } else {
-            setLayerType(defaultLayerType, null);
+            this.drawable.setVisible(getWindowToken() != null && getVisibility() == VISIBLE, false);
         }
         setContentWorkDimensions();
         invalidate();
     }
     
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (drawable != null) drawable.setVisible(getVisibility() == VISIBLE, false);
+    }
+    
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (drawable != null) drawable.setVisible(false, false);
+    }
+    
     public void setContentDimensions(int contentWidth, int contentHeight) {
         if (debug) Log.w(TAG, "setContentDimensions() new: " + contentWidth + "x" + contentHeight + ", old: " + this.contentWidth + "x" + this.contentHeight);
         this.contentWidth = contentWidth;
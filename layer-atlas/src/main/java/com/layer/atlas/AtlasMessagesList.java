@@ -48,6 +48,8 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.BaseAdapter;
 import android.widget.FrameLayout;
@@ -84,6 +86,8 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
     private static final int MESSAGE_TYPE_UPDATE_VALUES = 0;
     private static final int MESSAGE_REFRESH_UPDATE_ALL = 0;
     private static final int MESSAGE_REFRESH_UPDATE_DELIVERY = 1;
+    
+    private static final int DEFAULT_PREFETCH_CELLS = 5;
 
     private final DateFormat timeFormat;
     
@@ -115,6 +119,20 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
     /** Where cells comes from */
     private CellFactory cellFactory;
     
+    /** 
+     * Which cell is bound to which convertView and back. Used to notify cell when its view 
+     * is taken by another cell (see {@link Cell#onUnbind()})
+     */
+    private final HashMap<View, Cell> cellByView = new HashMap<View, Cell>();
+    private final HashMap<Cell, View> viewByCell = new HashMap<Cell, View>();
+    
+    /** how many cells ahead of scroll are prefetched. See {@link #setPrefetchCount(int)} */
+    private int prefetchCount = DEFAULT_PREFETCH_CELLS;
+    /** cells that requested content in {@link Cell#onPrefetch()} and are not cancelled yet */
+    private final HashSet<Cell> prefetched = new HashSet<Cell>();
+    /** conversation is set, but cells cannot size their images until list is laid out. See {@link #prefetchLastScreen()} */
+    private boolean prefetchLastScreenPending;
+    
     private LayerClient client;
     private Conversation conv;
     private Query<Message> query;
@@ -306,27 +324,6 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
                 return convertView;
             }
 
-            private void bindCell(View convertView, final Cell cell) {
-
-                ViewGroup cellContainer = (ViewGroup) convertView.findViewById(R.id.atlas_view_messages_cell_container);
-
-                View cellRootView = cell.onBind(cellContainer);
-                boolean alreadyInContainer = false;
-                // cleanUp container
-                cellRootView.setVisibility(View.VISIBLE);
-                for (int iChild = 0; iChild < cellContainer.getChildCount(); iChild++) {
-                    View child = cellContainer.getChildAt(iChild);
-                    if (child != cellRootView) {
-                        child.setVisibility(View.GONE);
-                    } else {
-                        alreadyInContainer = true;
-                    }
-                }
-                if (!alreadyInContainer) {
-                    cellContainer.addView(cellRootView);
-                }
-            }
-
             public long getItemId(int position) {
                 return position;
             }
@@ -347,6 +344,32 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
                 }
             }
         });
+        messagesList.setOnScrollListener(new OnScrollListener() {
+            private int firstVisible = -1;
+            private int lastVisible = -1;
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                // images decoded during fling are gone before they are displayed
+                Atlas.imageLoader.setPaused(scrollState == SCROLL_STATE_FLING);
+            }
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (visibleItemCount == 0) return;
+                int lastVisibleItem = firstVisibleItem + visibleItemCount - 1;
+                boolean moved = firstVisibleItem != firstVisible || lastVisibleItem != lastVisible;
+                if (!moved && !prefetchLastScreenPending) return;
+                boolean scrollsUp = firstVisible != -1 && firstVisibleItem < firstVisible;
+                firstVisible = firstVisibleItem;
+                lastVisible = lastVisibleItem;
+                Atlas.imageLoader.setVisibleRange(firstVisibleItem, lastVisibleItem);
+                if (prefetchLastScreenPending) {    // called from layout, list has its size now
+                    prefetchLastScreenPending = false;
+                    prefetchLastScreen();
+                } else if (scrollsUp) {
+                    prefetch(firstVisibleItem - prefetchCount, firstVisibleItem - 1);
+                } else {
+                    prefetch(lastVisibleItem + 1, lastVisibleItem + prefetchCount);
+                }
+            }
+        });
         // --- end of messageView
 
         updateValues();
@@ -687,16 +710,122 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
         }
     };
 
+    /** cells changed since last frame, rebound by {@link #REFRESH_CELLS} */
+    private final HashSet<Cell> dirtyCells = new HashSet<Cell>();
+
+    /** 
+     * Rebinds view displaying the cell, if any, instead of invalidating the whole list. 
+     * Calls made within one frame are rebound together on the next one. Main thread only
+     */
+    public void requestRefresh(Cell cell) {
+        if (dirtyCells.isEmpty()) messagesList.postOnAnimation(REFRESH_CELLS);
+        dirtyCells.add(cell);
+    }
+
+    /** Binds cell into row view, unbinding cell previously shown there. Used by adapter and {@link #REFRESH_CELLS} */
+    private void bindCell(View convertView, Cell cell) {
+        Cell previous = cellByView.put(convertView, cell);
+        if (previous != null && previous != cell && viewByCell.get(previous) == convertView) {
+            viewByCell.remove(previous);
+            previous.onUnbind();
+        }
+        viewByCell.put(cell, convertView);
+
+        ViewGroup cellContainer = (ViewGroup) convertView.findViewById(R.id.atlas_view_messages_cell_container);
+
+        View cellRootView = cell.onBind(cellContainer);
+        boolean alreadyInContainer = false;
+        // cleanUp container
+        cellRootView.setVisibility(View.VISIBLE);
+        for (int iChild = 0; iChild < cellContainer.getChildCount(); iChild++) {
+            View child = cellContainer.getChildAt(iChild);
+            if (child != cellRootView) {
+                child.setVisibility(View.GONE);
+            } else {
+                alreadyInContainer = true;
+            }
+        }
+        if (!alreadyInContainer) {
+            cellContainer.addView(cellRootView);
+        }
+    }
+
+    private final Runnable REFRESH_CELLS = new Runnable() {
+        public void run() {
+            for (Cell cell : dirtyCells) {
+                View view = viewByCell.get(cell);
+                if (view == null || cellByView.get(view) != cell) continue;   // scrolled away meanwhile
+                bindCell(view, cell);
+            }
+            if (debug) Log.w(TAG, "refreshCells() rebound: " + dirtyCells.size() + " cells");
+            dirtyCells.clear();
+        }
+    };
+
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
 
         if (debug) Log.d(TAG, "onDetachedFromWindow() clean cells and views... ");
+        Atlas.imageLoader.setPaused(false);     // don't leave loader paused if detached while flinging
+        prefetch(0, -1);
+        for (Cell cell : viewByCell.keySet()) {
+            cell.onUnbind();
+        }
+        viewByCell.clear();
+        cellByView.clear();
+        dirtyCells.clear();
+        messagesList.removeCallbacks(REFRESH_CELLS);
         cells.clear();
         messagesAdapter.notifyDataSetChanged();
         messagesList.removeAllViewsInLayout();
     }
 
+    /** 
+     * Asks cells in range [from, to] to prefetch their content, cancels prefetch of cells 
+     * out of range. Cells bound to views are skipped, they request content themselves
+     */
+    private void prefetch(int from, int to) {
+        from = Math.max(from, 0);
+        to = Math.min(to, cells.size() - 1);
+        HashSet<Cell> window = new HashSet<Cell>();
+        for (int i = from; i <= to; i++) {
+            Cell cell = cells.get(i);
+            if (!viewByCell.containsKey(cell)) window.add(cell);
+        }
+        for (Cell cell : prefetched) {
+            if (!window.contains(cell) && !viewByCell.containsKey(cell)) cell.onPrefetchCancel();
+        }
+        // cells that had nothing to request are asked again next time
+        HashSet<Cell> requested = new HashSet<Cell>();
+        for (Cell cell : window) {
+            if (prefetched.contains(cell) || cell.onPrefetch()) requested.add(cell);
+        }
+        prefetched.clear();
+        prefetched.addAll(requested);
+        if (debug) Log.d(TAG, "prefetch() [" + from + ", " + to + "] cells: " + window.size() + ", requested: " + requested.size());
+    }
+    
+    /** prefetches last screen of conversation, it is shown first. Must be called after layout */
+    private void prefetchLastScreen() {
+        int screen = Math.max(prefetchCount, messagesList.getChildCount());
+        prefetch(cells.size() - screen, cells.size() - 1);
+    }
+    
+    /** 
+     * @param prefetchCount - how many cells ahead of scroll direction should decode their images in 
+     *                        advance, with {@link Atlas.ImageLoader#PRIORITY_PREFETCH}. 0 disables prefetch
+     */
+    public void setPrefetchCount(int prefetchCount) {
+        if (prefetchCount < 0) throw new IllegalArgumentException("prefetchCount cannot be negative: " + prefetchCount);
+        this.prefetchCount = prefetchCount;
+        if (prefetchCount == 0) prefetch(0, -1);
+    }
+    
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
+    
     public void jumpToLastMessage() {
         messagesList.smoothScrollToPosition(cells.size() - 1);
     }
@@ -709,6 +838,7 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
         this.conv = conv;
         this.query = null;
         updateValues();
+        prefetchLastScreenPending = true;
         jumpToLastMessage();
     }
 
@@ -721,6 +851,7 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
         this.query = query;
         this.conv = null;
         updateValues();
+        prefetchLastScreenPending = true;
         jumpToLastMessage();
     }
 
@@ -882,6 +1013,28 @@ public class AtlasMessagesList extends FrameLayout implements LayerChangeEventLi
         </pre>
          */
         public abstract View onBind(ViewGroup cellContainer);
+        
+        /** 
+         * Called when view this cell was bound to is going to display another cell, or list is detached. 
+         * Cancel requests made in {@link #onBind(ViewGroup)} here, nobody will see their result
+         */
+        public void onUnbind() {
+        }
+        
+        /** 
+         * Called when cell is about to be scrolled into view. Request content with 
+         * {@link Atlas.ImageLoader#PRIORITY_PREFETCH} here, so it is ready by {@link #onBind(ViewGroup)}
+         * 
+         * @return <b>true</b> if something has been requested and should be cancelled in {@link #onPrefetchCancel()}. 
+         *         <b>false</b> if there was nothing to request yet, cell is asked again next time 
+         */
+        public boolean onPrefetch() {
+            return false;
+        }
+        
+        /** Called when cell prefetched earlier has left prefetch window without being bound */
+        public void onPrefetchCancel() {
+        }
     }
 
 
@@ -15,67 +15,229 @@
  */
 package com.layer.atlas;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.ColorFilter;
-import android.graphics.Movie;
+import android.graphics.Paint;
 import android.graphics.PixelFormat;
+import android.graphics.drawable.Animatable;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
+ * Plays {@link GIFImage}. Next frame is rendered on background thread into a bitmap not
+ * displayed at the moment, and swapped in when current frame's delay is over. View is
+ * invalidated only then, not on every draw.
+ * <p>
+ * Animation pauses when drawable is {@link #setVisible(boolean, boolean)} false, detached
+ * from its view, or when frame has not been drawn by the time next one is due, i.e. view
+ * is scrolled away. The next draw resumes it. If rendering fails, i.e. with OutOfMemoryError,
+ * animation stops at the poster frame for good.
+ *
  * @author Oleg Orlov
  * @since  24 Jun 2015
  */
-public class GIFDrawable extends Drawable {
+public class GIFDrawable extends Drawable implements Animatable {
     private static final String TAG = GIFDrawable.class.getSimpleName();
     private static final boolean debug = false;
-    
-    /** By default first frame to show wouldn't depend on time of Drawable creation */
-    private static final long defaultCreatedAt = System.currentTimeMillis();
-
-    private Movie gif;
-    private long createdAt = defaultCreatedAt;
-    
-    public GIFDrawable(Movie gif) {
+
+    /** one thread renders frames of all GIFs, they are rarely seen more than few at once */
+    private static Handler rendererHandler;
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final GIFImage gif;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /** used on renderer thread only */
+    private GIFImage.Renderer renderer;
+    /** ring of frame bitmaps: one is displayed while next is rendered into another */
+    private final Bitmap[] buffers = new Bitmap[2];
+
+    // state below is touched on main thread only
+    /** displayed frame. {@link GIFImage#getPoster()} until first rendered frame is swapped in */
+    private Bitmap front;
+    private int frontFrame = 0;
+    private long frontShownAt = 0;
+    /** bitmap being rendered, or rendered and waiting for its time */
+    private Bitmap back;
+    /** frame rendered into {@link #back}, -1 if not ready yet */
+    private int backFrame = -1;
+    private volatile int renderedFrame = -1;
+    /** rendering failed, i.e. out of memory. Set on renderer thread, handled on main thread */
+    private volatile Throwable renderFailure;
+    /** animation is stopped for good at {@link GIFImage#getPoster()} */
+    private boolean failed;
+    private boolean rendering;
+    private boolean running;
+    /** {@link #front} has been drawn since it was swapped in */
+    private boolean drawn;
+
+    public GIFDrawable(GIFImage gif) {
+        if (gif.getPoster() == null) throw new IllegalArgumentException("GIFImage must be decoded");
         this.gif = gif;
+        this.front = gif.getPoster();
     }
-    
-    public GIFDrawable(Movie gif, long createdAt) {
-        this.gif = gif;
-        this.createdAt = createdAt;
+
+    public GIFImage getGIF() {
+        return gif;
     }
 
     @Override
     public void draw(Canvas canvas) {
-        if (debug) Log.w(TAG, "draw() gif: " + gif.width() + "x" + gif.height() + " @" + gif.duration());
-        long time = 0;
-        if (gif.duration() > 0) {
-            time = (System.currentTimeMillis() - createdAt) % gif.duration();
+        canvas.drawBitmap(front, null, getBounds(), paint);
+        drawn = true;
+        if (!running && isVisible()) start();
+        if (debug) Log.w(TAG, "draw() gif: " + gif.width + "x" + gif.height + ", frame: " + frontFrame + ", bounds: " + getBounds());
+    }
+
+    @Override
+    public void start() {
+        if (running || failed || gif.getFrameCount() < 2) return;
+        running = true;
+        if (frontShownAt == 0) frontShownAt = SystemClock.uptimeMillis();
+        if (backFrame != -1) {
+            scheduleSwap();
+        } else {
+            renderNextFrame();
         }
-        gif.setTime((int)time);
-        
-        int saved = canvas.save();
-        // prepare bounds
-        int gifWidth = gif.width();
-        int gifHeight = gif.height();
-        int boundsWidth = getBounds().width();
-        int boundsHeight = getBounds().height();
-        if (boundsWidth != gifWidth || boundsHeight != gifHeight) {
-            canvas.scale(1.0f * boundsWidth / gifWidth, 1.0f * boundsHeight / gifHeight);
+    }
+
+    @Override
+    public void stop() {
+        if (!running) return;
+        running = false;
+        unscheduleSelf(swap);
+        if (debug) Log.w(TAG, "stop() gif: " + gif.width + "x" + gif.height + " at frame: " + frontFrame);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean setVisible(boolean visible, boolean restart) {
+        boolean changed = super.setVisible(visible, restart);
+        if (visible) {
+            start();
+        } else {
+            stop();
         }
-        gif.draw(canvas, getBounds().left, getBounds().top);
-        canvas.restoreToCount(saved);
-        if (debug) Log.w(TAG, "draw() gif: " + gif.width() + "x" + gif.height() + " @" + gif.duration() 
-                + " time: " + time + ", bounds: " + getBounds().left + "x" + getBounds().top);
+        return changed;
+    }
+
+    private void renderNextFrame() {
+        if (rendering || backFrame != -1) return;
+        int target = front == buffers[0] ? 1 : 0;
+        try {
+            if (buffers[target] == null) buffers[target] = gif.createFrameBitmap();
+        } catch (OutOfMemoryError e) {
+            fail(e);
+            return;
+        }
+        back = buffers[target];
+        rendering = true;
+        rendererHandler().post(render);
+    }
+
+    /** 
+     * Renders next frame into {@link #back}. Runs on renderer thread, shared by all GIFs, 
+     * so failure is reported to main thread rather than thrown 
+     */
+    private final Runnable render = new Runnable() {
+        public void run() {
+            try {
+                if (renderer == null) {
+                    renderer = new GIFImage.Renderer(gif);
+                    renderer.renderNext(back);  // poster is on screen, but frames are composed on top of each other
+                }
+                renderedFrame = renderer.renderNext(back);
+            } catch (OutOfMemoryError e) {
+                renderer = null;
+                renderFailure = e;
+            } catch (RuntimeException e) {
+                renderer = null;
+                renderFailure = e;
+            }
+            mainHandler.post(rendered);
+        }
+    };
+
+    private final Runnable rendered = new Runnable() {
+        public void run() {
+            rendering = false;
+            if (renderFailure != null) {
+                fail(renderFailure);
+                return;
+            }
+            backFrame = renderedFrame;
+            if (running) scheduleSwap();
+        }
+    };
+
+    /** stops animation at poster for good and releases frame buffers. Runs on main thread */
+    private void fail(Throwable cause) {
+        Log.e(TAG, "fail() cannot render gif: " + gif.width + "x" + gif.height + "/" + gif.sampleSize + ", frame: " + frontFrame + ", stopping at poster", cause);
+        stop();
+        failed = true;
+        front = gif.getPoster();
+        frontFrame = 0;
+        back = null;
+        backFrame = -1;
+        buffers[0] = null;
+        buffers[1] = null;
         invalidateSelf();
     }
 
+    private void scheduleSwap() {
+        if (getCallback() == null) {   // nobody would draw it
+            stop();
+            return;
+        }
+        scheduleSelf(swap, frontShownAt + gif.getDelay(frontFrame));
+    }
+
+    private final Runnable swap = new Runnable() {
+        public void run() {
+            if (!running || backFrame == -1) return;
+            if (!drawn) {   // current frame is not seen, there is no point to show next one
+                stop();
+                return;
+            }
+            front = back;
+            frontFrame = backFrame;
+            backFrame = -1;
+            frontShownAt = SystemClock.uptimeMillis();
+            drawn = false;
+            invalidateSelf();
+            renderNextFrame();
+        }
+    };
+
+    private static synchronized Handler rendererHandler() {
+        if (rendererHandler == null) {
+            HandlerThread thread = new HandlerThread("AtlasGIFRenderer", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            rendererHandler = new Handler(thread.getLooper());
+        }
+        return rendererHandler;
+    }
+
     @Override
     public void setAlpha(int alpha) {
+        paint.setAlpha(alpha);
+        invalidateSelf();
     }
 
     @Override
     public void setColorFilter(ColorFilter cf) {
+        paint.setColorFilter(cf);
+        invalidateSelf();
     }
 
     @Override
@@ -85,12 +247,12 @@ public class GIFDrawable extends Drawable {
 
     @Override
     public int getIntrinsicWidth() {
-        return gif.width();
+        return gif.width;
     }
 
     @Override
     public int getIntrinsicHeight() {
-        return gif.height();
+        return gif.height;
     }
 
 }
@@ -0,0 +1,468 @@
+/*
+ * Copyright (c) 2015 Layer. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.layer.atlas;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Parsed GIF ready to be rendered frame by frame. Immutable and safe to share through
+ * {@link Atlas.ImageLoader} cache: frames are decoded by {@link Renderer}, one per drawable.
+ * <p>
+ * Only structure is parsed upfront - compressed frame data stays in memory as is, and
+ * the first frame is rendered into {@link #getPoster()} to be displayed until animation starts.
+ * Frames are rendered downsampled by {@link #sampleSize}, the same way Bitmaps are.
+ * <pre>
+ *     GIFImage gif = GIFImage.read(stream).decode(sampleSize);
+ *     imageView.setImageDrawable(new GIFDrawable(gif));
+ * </pre>
+ */
+public class GIFImage {
+    private static final String TAG = GIFImage.class.getSimpleName();
+    private static final boolean debug = false;
+
+    /** browsers treat shorter delays as "as fast as possible" and slow them down to 100ms */
+    private static final int MIN_FRAME_DELAY_MS = 20;
+    private static final int DEFAULT_FRAME_DELAY_MS = 100;
+    private static final int MAX_LZW_CODES = 4096;
+
+    private static final int DISPOSE_BACKGROUND = 2;
+    private static final int DISPOSE_PREVIOUS = 3;
+
+    /** original dimensions */
+    public final int width;
+    public final int height;
+    /** frames are rendered <code>sampleSize</code> times smaller than original */
+    public final int sampleSize;
+
+    private final byte[] data;
+    private final ArrayList<Frame> frames;
+    private Bitmap poster;
+
+    private GIFImage(byte[] data, ArrayList<Frame> frames, int width, int height, int sampleSize) {
+        this.data = data;
+        this.frames = frames;
+        this.width = width;
+        this.height = height;
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Reads GIF and indexes its frames. Nothing is rendered yet, use {@link #decode(int)} to get displayable image
+     *
+     * @throws IOException if stream cannot be read or is not a GIF
+     */
+    public static GIFImage read(InputStream is) throws IOException {
+        return read(is, -1);
+    }
+
+    /**
+     * @param length - expected length of stream, i.e. size of message part. Data is read into array 
+     *                 of that size, without copying. -1 if unknown
+     * @see #read(InputStream)
+     */
+    public static GIFImage read(InputStream is, int length) throws IOException {
+        byte[] data = new byte[length > 0 ? length : 16 * 1024];
+        int size = 0;
+        while (true) {
+            if (size == data.length) {
+                int next = is.read();
+                if (next == -1) break;
+                data = Arrays.copyOf(data, data.length * 2);    // length was wrong or unknown
+                data[size++] = (byte) next;
+            }
+            int read = is.read(data, size, data.length - size);
+            if (read == -1) break;
+            size += read;
+        }
+        if (size < data.length) data = Arrays.copyOf(data, size);
+        return parse(data);
+    }
+
+    /**
+     * Renders the first frame into {@link #getPoster()}. Compressed data is shared with this image
+     *
+     * @param sampleSize - power of 2 to downsample frames with, like {@link android.graphics.BitmapFactory.Options#inSampleSize}
+     * @return image ready to be displayed by {@link GIFDrawable}
+     */
+    public GIFImage decode(int sampleSize) {
+        GIFImage gif = sampled(sampleSize);
+        gif.poster = gif.createFrameBitmap();
+        new Renderer(gif).renderNext(gif.poster);
+        if (debug) Log.w(TAG, "decode() " + width + "x" + height + "/" + sampleSize + ", frames: " + frames.size() + ", bytes: " + data.length);
+        return gif;
+    }
+
+    /** @return the same GIF to be rendered <code>sampleSize</code> times smaller, without poster */
+    GIFImage sampled(int sampleSize) {
+        if (sampleSize < 1) throw new IllegalArgumentException("sampleSize must be positive. sampleSize: " + sampleSize);
+        return new GIFImage(data, frames, width, height, sampleSize);
+    }
+
+    /** Indexes blocks of GIF without decoding any pixels */
+    static GIFImage parse(byte[] data) throws IOException {
+        if (data.length < 13 || data[0] != 'G' || data[1] != 'I' || data[2] != 'F') throw new IOException("Not a GIF. bytes: " + data.length);
+        int width  = readShort(data, 6);
+        int height = readShort(data, 8);
+        if (width == 0 || height == 0) throw new IOException("Bad GIF dimensions: " + width + "x" + height);
+        int packed = data[10] & 0xFF;
+        int pos = 13;
+        int[] globalColorTable = null;
+        if ((packed & 0x80) != 0) {
+            int colors = 2 << (packed & 0x07);
+            globalColorTable = readColorTable(data, pos, colors);
+            pos += colors * 3;
+        }
+        GIFImage gif = new GIFImage(data, new ArrayList<Frame>(), width, height, 1);
+
+        // graphic control extension applies to the next image only
+        int delay = 0, dispose = 0, transparentIndex = -1;
+        boolean trailer = false;
+        while (pos < data.length && !trailer) {
+            int block = data[pos++] & 0xFF;
+            switch (block) {
+                case 0x21 : // extension
+                    if (pos >= data.length) break;
+                    int label = data[pos++] & 0xFF;
+                    if (label == 0xF9 && pos + 5 < data.length) {
+                        int gcePacked = data[pos + 1] & 0xFF;
+                        dispose = (gcePacked & 0x1C) >> 2;
+                        delay = readShort(data, pos + 2) * 10;
+                        transparentIndex = (gcePacked & 0x01) != 0 ? data[pos + 4] & 0xFF : -1;
+                    }
+                    pos = skipSubBlocks(data, pos);
+                    break;
+                case 0x2C : // image descriptor
+                    if (pos + 9 > data.length) { trailer = true; break; }
+                    Frame frame = new Frame();
+                    frame.x = readShort(data, pos);
+                    frame.y = readShort(data, pos + 2);
+                    frame.width  = readShort(data, pos + 4);
+                    frame.height = readShort(data, pos + 6);
+                    int imgPacked = data[pos + 8] & 0xFF;
+                    pos += 9;
+                    frame.interlaced = (imgPacked & 0x40) != 0;
+                    if ((imgPacked & 0x80) != 0) {
+                        int colors = 2 << (imgPacked & 0x07);
+                        frame.colorTable = readColorTable(data, pos, colors);
+                        pos += colors * 3;
+                    } else {
+                        frame.colorTable = globalColorTable;
+                    }
+                    frame.dataOffset = pos;
+                    frame.delay = delay < MIN_FRAME_DELAY_MS ? DEFAULT_FRAME_DELAY_MS : delay;
+                    frame.dispose = dispose;
+                    frame.transparentIndex = transparentIndex;
+                    pos = skipSubBlocks(data, pos + 1); // lzw minimum code size precedes data blocks
+                    if (frame.colorTable != null && frame.width > 0 && frame.height > 0) gif.frames.add(frame);
+                    delay = 0; dispose = 0; transparentIndex = -1;
+                    break;
+                case 0x3B : // trailer
+                    trailer = true;
+                    break;
+                default :   // garbage after last frame is common, keep what is parsed already
+                    if (debug) Log.w(TAG, "parse() unknown block: " + block + " at " + (pos - 1) + " of " + data.length);
+                    trailer = true;
+            }
+        }
+        if (gif.frames.size() == 0) throw new IOException("GIF has no frames. bytes: " + data.length);
+        return gif;
+    }
+
+    private static int readShort(byte[] data, int pos) {
+        return (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8);
+    }
+
+    private static int[] readColorTable(byte[] data, int pos, int colors) throws IOException {
+        if (pos + colors * 3 > data.length) throw new IOException("Color table is truncated");
+        int[] table = new int[256];   // indices out of table are rendered black rather than crash
+        Arrays.fill(table, 0xFF000000);
+        for (int i = 0; i < colors; i++, pos += 3) {
+            table[i] = 0xFF000000 | ((data[pos] & 0xFF) << 16) | ((data[pos + 1] & 0xFF) << 8) | (data[pos + 2] & 0xFF);
+        }
+        return table;
+    }
+
+    /** @return position after the terminator of sub-blocks sequence starting at <code>pos</code> */
+    private static int skipSubBlocks(byte[] data, int pos) {
+        while (pos < data.length) {
+            int size = data[pos++] & 0xFF;
+            if (size == 0) break;
+            pos += size;
+        }
+        return pos;
+    }
+
+    public int getFrameCount() {
+        return frames.size();
+    }
+
+    /** @return how long frame should stay on screen, milliseconds */
+    public int getDelay(int frame) {
+        return frames.get(frame).delay;
+    }
+
+    /** 
+     * @return first frame, rendered at {@link #getFrameWidth()} x {@link #getFrameHeight()}. Must not be modified. 
+     *         <b>null</b> if image is not {@link #decode(int)}d 
+     */
+    public Bitmap getPoster() {
+        return poster;
+    }
+
+    public int getFrameWidth() {
+        return Math.max(1, width / sampleSize);
+    }
+
+    public int getFrameHeight() {
+        return Math.max(1, height / sampleSize);
+    }
+
+    /** @return bitmap frames of this GIF could be rendered into */
+    public Bitmap createFrameBitmap() {
+        return Bitmap.createBitmap(getFrameWidth(), getFrameHeight(), Bitmap.Config.ARGB_8888);
+    }
+
+    /** @return memory held by this GIF: compressed data and poster frame */
+    public int getByteCount() {
+        return data.length + (poster != null ? poster.getRowBytes() * poster.getHeight() : 0);
+    }
+
+    /** package-private for tests */
+    Frame getFrame(int frame) {
+        return frames.get(frame);
+    }
+
+    static final class Frame {
+        int x, y, width, height;
+        boolean interlaced;
+        int[] colorTable;
+        int transparentIndex;
+        int dispose;
+        int delay;
+        /** lzw minimum code size followed by data sub-blocks */
+        int dataOffset;
+    }
+
+    /**
+     * Renders frames of {@link GIFImage} one after another, looping after the last one. Keeps
+     * canvas frames are composed on, so each step decodes only one frame. Canvas is frame size,
+     * not original: only pixels that survive downsampling are composed.
+     * <p>
+     * Working memory is one int per frame pixel, twice for GIFs disposing to previous frame, plus
+     * one byte per pixel of the biggest original frame for LZW output.
+     * Not thread-safe: every animation needs its own renderer, used from one thread at a time
+     */
+    public static final class Renderer {
+        private final GIFImage gif;
+        /** canvas dimensions, see {@link GIFImage#getFrameWidth()} */
+        private final int width;
+        private final int height;
+        /** composed image. Pixel x, y is original pixel x * sampleSize, y * sampleSize */
+        final int[] canvas;
+        /** canvas saved for frames with {@link GIFImage#DISPOSE_PREVIOUS} */
+        private int[] saved;
+        /** color indices of the last decoded frame, original size */
+        byte[] indices;
+        private final short[] prefix = new short[MAX_LZW_CODES];
+        private final byte[] suffix = new byte[MAX_LZW_CODES];
+        private final byte[] stack = new byte[MAX_LZW_CODES + 1];
+        private int frame = -1;
+
+        public Renderer(GIFImage gif) {
+            this.gif = gif;
+            this.width  = gif.getFrameWidth();
+            this.height = gif.getFrameHeight();
+            this.canvas = new int[width * height];
+        }
+
+        /** @return index of the frame {@link #renderNext(Bitmap)} renders next */
+        public int getNextFrame() {
+            return (frame + 1) % gif.frames.size();
+        }
+
+        /**
+         * Composes the next frame and copies it into bitmap
+         *
+         * @param into - bitmap created by {@link GIFImage#createFrameBitmap()}
+         * @return index of rendered frame
+         */
+        public int renderNext(Bitmap into) {
+            int next = compose();
+            into.setPixels(canvas, 0, width, 0, 0, width, height);
+            return next;
+        }
+
+        /** composes the next frame on {@link #canvas}. @return its index */
+        int compose() {
+            int next = getNextFrame();
+            if (next == 0) {
+                Arrays.fill(canvas, 0);
+            } else {
+                Frame previous = gif.frames.get(frame);
+                if (previous.dispose == DISPOSE_BACKGROUND) {
+                    fillRect(previous, 0);
+                } else if (previous.dispose == DISPOSE_PREVIOUS && saved != null) {
+                    System.arraycopy(saved, 0, canvas, 0, canvas.length);
+                }
+            }
+            Frame current = gif.frames.get(next);
+            if (current.dispose == DISPOSE_PREVIOUS) {
+                if (saved == null) saved = new int[canvas.length];
+                System.arraycopy(canvas, 0, saved, 0, canvas.length);
+            }
+            decodeIndices(current);
+            drawIndices(current);
+            frame = next;
+            return next;
+        }
+
+        private void fillRect(Frame f, int color) {
+            int sampleSize = gif.sampleSize;
+            // canvas column x holds original column x * sampleSize, so take the first one inside the frame
+            int left   = (f.x + sampleSize - 1) / sampleSize;
+            int top    = (f.y + sampleSize - 1) / sampleSize;
+            int right  = Math.min((f.x + f.width  + sampleSize - 1) / sampleSize, width);
+            int bottom = Math.min((f.y + f.height + sampleSize - 1) / sampleSize, height);
+            for (int y = top; y < bottom; y++) {
+                if (left < right) Arrays.fill(canvas, y * width + left, y * width + right, color);
+            }
+        }
+
+        /** LZW-decodes frame's color indices into {@link #indices}. Missing pixels of truncated frame are left 0 */
+        void decodeIndices(Frame f) {
+            int pixels = f.width * f.height;
+            if (indices == null || indices.length < pixels) {
+                indices = new byte[pixels];
+            } else {
+                Arrays.fill(indices, 0, pixels, (byte) 0);
+            }
+            byte[] data = gif.data;
+            int pos = f.dataOffset;
+            if (pos >= data.length) return;
+            int minCodeSize = data[pos++] & 0xFF;
+            if (minCodeSize > 11) return;
+            int clear = 1 << minCodeSize;
+            int endOfInformation = clear + 1;
+            int available = clear + 2;
+            int codeSize = minCodeSize + 1;
+            int codeMask = (1 << codeSize) - 1;
+            int oldCode = -1;
+            int first = 0;
+            for (int code = 0; code < clear; code++) {
+                prefix[code] = 0;
+                suffix[code] = (byte) code;
+            }
+
+            int datum = 0, bits = 0, blockRemaining = 0, top = 0, pixel = 0;
+            while (pixel < pixels) {
+                if (top == 0) {
+                    if (bits < codeSize) {
+                        if (blockRemaining == 0) {
+                            if (pos >= data.length) break;
+                            blockRemaining = data[pos++] & 0xFF;
+                            if (blockRemaining == 0) break;
+                        }
+                        if (pos >= data.length) break;
+                        datum |= (data[pos++] & 0xFF) << bits;
+                        bits += 8;
+                        blockRemaining--;
+                        continue;
+                    }
+                    int code = datum & codeMask;
+                    datum >>= codeSize;
+                    bits -= codeSize;
+
+                    if (code > available || code == endOfInformation) break;
+                    if (code == clear) {
+                        codeSize = minCodeSize + 1;
+                        codeMask = (1 << codeSize) - 1;
+                        available = clear + 2;
+                        oldCode = -1;
+                        continue;
+                    }
+                    if (oldCode == -1) {
+                        stack[top++] = suffix[code];
+                        oldCode = code;
+                        first = code;
+                        continue;
+                    }
+                    int inCode = code;
+                    if (code == available) {
+                        stack[top++] = (byte) first;
+                        code = oldCode;
+                    }
+                    while (code > clear) {
+                        stack[top++] = suffix[code];
+                        code = prefix[code];
+                    }
+                    first = suffix[code] & 0xFF;
+                    stack[top++] = (byte) first;
+                    if (available < MAX_LZW_CODES) {
+                        prefix[available] = (short) oldCode;
+                        suffix[available] = (byte) first;
+                        available++;
+                        if ((available & codeMask) == 0 && available < MAX_LZW_CODES) {
+                            codeSize++;
+                            codeMask += available;
+                        }
+                    }
+                    oldCode = inCode;
+                }
+                indices[pixel++] = stack[--top];
+            }
+        }
+
+        private void drawIndices(Frame f) {
+            int[] colors = f.colorTable;
+            int sampleSize = gif.sampleSize;
+            // the first column of frame that lands on canvas
+            int firstColumn = (sampleSize - f.x % sampleSize) % sampleSize;
+            int pass = 1, step = 8, line = 0;
+            for (int row = 0; row < f.height; row++) {
+                int y = row;
+                if (f.interlaced) {
+                    while (line >= f.height && pass < 4) {     // short frames skip whole passes
+                        pass++;
+                        switch (pass) {
+                            case 2 : line = 4; break;
+                            case 3 : line = 2; step = 4; break;
+                            case 4 : line = 1; step = 2; break;
+                        }
+                    }
+                    y = line;
+                    line += step;
+                }
+                y += f.y;
+                if (y % sampleSize != 0 || y / sampleSize >= height) continue;
+                int from = row * f.width;
+                int dst = y / sampleSize * width;
+                for (int x = firstColumn; x < f.width; x += sampleSize) {
+                    int column = (f.x + x) / sampleSize;
+                    if (column >= width) break;
+                    int index = indices[from + x] & 0xFF;
+                    if (index == f.transparentIndex) continue;
+                    canvas[dst + column] = colors[index];
+                }
+            }
+        }
+    }
+}
@@ -15,15 +15,16 @@
  */
 package com.layer.atlas.cells;
 
-import android.graphics.Movie;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.util.Log;
 
 import com.layer.atlas.Atlas;
+import com.layer.atlas.Atlas.ImageLoader;
 import com.layer.atlas.Atlas.ImageLoader.InputStreamProvider;
 import com.layer.atlas.AtlasMessagesList;
 import com.layer.atlas.GIFDrawable;
+import com.layer.atlas.GIFImage;
 import com.layer.sdk.messaging.MessagePart;
 
 /**
@@ -34,6 +35,8 @@ public class GIFCell extends ImageCell {
     private static final String TAG = GIFCell.class.getSimpleName();
     private static final boolean debug = false;
     
+    private GIFDrawable gifDrawable;
+    
     public GIFCell(MessagePart fullImagePart, MessagePart previewImagePart, int width, int height, int orientation, AtlasMessagesList messagesList) {
         super(fullImagePart, previewImagePart, width, height, orientation, messagesList);
     }
@@ -43,25 +46,31 @@ public class GIFCell extends ImageCell {
     }
 
     @Override
-    protected Drawable getDrawable(MessagePart workingPart) {
-        Movie mov  = (Movie) Atlas.imageLoader.getImageFromCache(workingPart.getId());
-        
-        // TODO: calculate properly with rotation
-        int requiredWidth  = messagesList.getWidth();
-        int requiredHeight = messagesList.getHeight();
+    protected Drawable getDrawable(MessagePart workingPart, int requiredWidth, int requiredHeight) {
+        GIFImage gif = (GIFImage) Atlas.imageLoader.getImageFromCache(workingPart.getId());
+        // too big for cache, only the request knows it
+        if (gif == null && imageSpec != null && imageSpec.id.equals(workingPart.getId()) && imageSpec.image instanceof GIFImage) gif = (GIFImage) imageSpec.image;
         
-        if (mov != null) {
-            if (debug) Log.i(TAG, "gif.onBind() returned from cache! " + mov.width() + "x" + mov.height() 
+        if (gif != null) {
+            if (debug) Log.i(TAG, "gif.onBind() returned from cache! " + gif.width + "x" + gif.height 
                     + ", req: " + requiredWidth + "x" + requiredHeight + " for " + workingPart.getId());
-            return new GIFDrawable(mov);
+            // rebinding keeps animation going instead of restarting it from the first frame
+            if (gifDrawable == null || gifDrawable.getGIF() != gif) gifDrawable = new GIFDrawable(gif);
+            return gifDrawable;
         } else if (workingPart.isContentReady()){
             final Uri id = workingPart.getId();
             InputStreamProvider streamProvider = new Atlas.MessagePartBufferedStreamProvider(workingPart); 
-            imageSpec = Atlas.imageLoader.requestImage(id, streamProvider, requiredWidth, requiredHeight, true, this);
+            imageSpec = Atlas.imageLoader.requestImage(id, streamProvider, requiredWidth, requiredHeight, true, ImageLoader.PRIORITY_VISIBLE, clusterItemId, this);
         }
         return null;
     }
 
+    /** GIFs are heavy and have no preview. Decoded only when cell is bound */
+    @Override
+    public boolean onPrefetch() {
+        return false;
+    }
+    
     @Override
     protected MessagePart getWorkingPart() {
         return fullPart;
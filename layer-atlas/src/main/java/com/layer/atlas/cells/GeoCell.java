@@ -16,6 +16,8 @@
 package com.layer.atlas.cells;
 
 import java.io.File;
+import java.io.InputStream;
+import java.util.Locale;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -29,6 +31,8 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.layer.atlas.Atlas;
+import com.layer.atlas.Atlas.DiskCache;
+import com.layer.atlas.Atlas.DownloadQueue;
 import com.layer.atlas.Atlas.ImageLoader;
 import com.layer.atlas.Atlas.ImageLoader.ImageSpec;
 import com.layer.atlas.Atlas.Tools;
@@ -46,10 +50,25 @@ public class GeoCell extends Cell implements Atlas.DownloadQueue.CompleteListene
     private static final String TAG = GeoCell.class.getSimpleName();
     private static final boolean debug = false;
     
+    public static final int TILE_ZOOM = 16;
+    public static final int TILE_WIDTH = 300;
+    public static final int TILE_HEIGHT = 300;
+    /** 
+     * Coordinates are rounded to this many decimal digits before tile is requested. 
+     * 0.0001 degree is ~11m, a few pixels at {@link #TILE_ZOOM}, so nearby locations share a tile 
+     */
+    public static final int TILE_COORDINATE_DIGITS = 4;
+    public static final long DEFAULT_TILE_CACHE_BYTES = 4 * 1024 * 1024;
+    
+    /** tiles of all GeoCells. Created on first use in <code>cacheDir/geo</code> */
+    private static DiskCache tileCache;
+    
     double lon;
     double lat;
     
     ImageSpec spec;
+    /** tile download, cancelled when cell leaves the screen */
+    DownloadQueue.Entry download;
     
     final AtlasMessagesList messagesList;
 
@@ -92,8 +111,10 @@ public class GeoCell extends Cell implements Atlas.DownloadQueue.CompleteListene
         ImageView geoImage = myMessage ? geoImageMy : geoImageTheir; 
         ShapedFrameLayout cellCustom = (ShapedFrameLayout) (myMessage ? containerMy : containerTheir);
         
-        Object imageId = messagePart.getId();
+        Object imageId = getTileKey();
         Bitmap bmp = (Bitmap) Atlas.imageLoader.getImageFromCache(imageId);
+        // too big for cache, only the request knows it
+        if (bmp == null && spec != null && spec.id.equals(imageId) && spec.image instanceof Bitmap) bmp = (Bitmap) spec.image;
         if (bmp != null) {
             if (debug) Log.d(TAG, "geo.onBind() bitmap: " + bmp.getWidth() + "x" + bmp.getHeight());
             geoImage.setImageBitmap(bmp);
@@ -101,29 +122,27 @@ public class GeoCell extends Cell implements Atlas.DownloadQueue.CompleteListene
             if (debug) Log.d(TAG, "geo.onBind() spec: " + spec);
             geoImage.setImageDrawable(Tools.EMPTY_DRAWABLE);
             // schedule image
-            File tileFile = getTileFile(cellContainer.getContext());
-            if (tileFile.exists()) {
+            DiskCache tiles = getTileCache(cellContainer.getContext());
+            String tileKey = getTileKey();
+            File tileFile = tiles.get(tileKey);
+            TileStreamProvider tileProvider = null;
+            if (tileFile != null) {
+                try {
+                    tileProvider = new TileStreamProvider(tileFile, tileKey);
+                } catch (IllegalStateException e) {     // deleted behind index's back, download again
+                    tiles.remove(tileKey);
+                }
+            }
+            if (tileProvider != null) {
                 if (debug) Log.d(TAG, "geo.onBind() decodeImage: " + tileFile);
                 // request decoding
                 spec = Atlas.imageLoader.requestImage(imageId
-                        , new Atlas.FileStreamProvider(tileFile)
+                        , tileProvider
                         , (int)Tools.getPxFromDp(150, cellContainer.getContext())
-                        , (int)Tools.getPxFromDp(150, cellContainer.getContext()), false, this);
+                        , (int)Tools.getPxFromDp(150, cellContainer.getContext()), false, ImageLoader.PRIORITY_VISIBLE, clusterItemId, this);
             } else {
-                int width = 300;
-                int height = 300;
-                int zoom = 16;
-                final String url = new StringBuilder()
-                        .append("https://maps.googleapis.com/maps/api/staticmap?")
-                        .append("format=png32&")
-                        .append("center=").append(lat).append(",").append(lon).append("&")
-                        .append("zoom=").append(zoom).append("&")
-                        .append("size=").append(width).append("x").append(height).append("&")
-                        .append("maptype=roadmap&")
-                        .append("markers=color:red%7C").append(lat).append(",").append(lon)
-                        .toString();
-                
-                Atlas.downloadQueue.schedule(url, tileFile, this);
+                tileFile = tiles.getFile(tileKey);
+                download = Atlas.downloadQueue.schedule(getTileUrl(), tileFile, DownloadQueue.PRIORITY_VISIBLE, this);
                 
                 if (debug) Log.d(TAG, "geo.onBind() show stub and download image: " + tileFile);
             }
@@ -154,10 +173,59 @@ public class GeoCell extends Cell implements Atlas.DownloadQueue.CompleteListene
         return cellRoot;
     }
     
-    private File getTileFile(Context context) {
-        String fileDir = context.getCacheDir() + File.separator + "geo";
-        String fileName = String.format("%f_%f.png", lat, lon);
-        return new File(fileDir, fileName);
+    private String getTileUrl() {
+        String center = quantize(lat) + "," + quantize(lon);
+        return new StringBuilder()
+                .append("https://maps.googleapis.com/maps/api/staticmap?")
+                .append("format=png32&")
+                .append("center=").append(center).append("&")
+                .append("zoom=").append(TILE_ZOOM).append("&")
+                .append("size=").append(TILE_WIDTH).append("x").append(TILE_HEIGHT).append("&")
+                .append("maptype=roadmap&")
+                .append("markers=color:red%7C").append(center)
+                .toString();
+    }
+    
+    /** Same for all locations rounding to the same tile. Used as image id too */
+    private String getTileKey() {
+        return "geo_" + quantize(lat) + "_" + quantize(lon) + "_z" + TILE_ZOOM + "_" + TILE_WIDTH + "x" + TILE_HEIGHT + ".png";
+    }
+    
+    private static String quantize(double degrees) {
+        return String.format(Locale.US, "%." + TILE_COORDINATE_DIGITS + "f", degrees);
+    }
+    
+    public static synchronized DiskCache getTileCache(Context context) {
+        if (tileCache == null) {
+            tileCache = new DiskCache(new File(context.getCacheDir(), "geo"), DEFAULT_TILE_CACHE_BYTES);
+        }
+        return tileCache;
+    }
+    
+    /** Replaces default tile cache, i.e. to change its location or size */
+    public static synchronized void setTileCache(DiskCache cache) {
+        if (cache == null) throw new IllegalArgumentException("cache cannot be null");
+        tileCache = cache;
+    }
+
+    /** Tile that cannot be opened anymore is dropped from cache, so the next bind downloads it again */
+    private class TileStreamProvider extends Atlas.FileStreamProvider {
+        private final String tileKey;
+        
+        TileStreamProvider(File tileFile, String tileKey) {
+            super(tileFile);
+            this.tileKey = tileKey;
+        }
+        
+        @Override
+        public InputStream getInputStream() {
+            InputStream is = super.getInputStream();
+            if (is == null) {
+                getTileCache(messagesList.getContext()).remove(tileKey);
+                messagesList.requestRefresh();
+            }
+            return is;
+        }
     }
 
     @Override
@@ -168,11 +236,35 @@ public class GeoCell extends Cell implements Atlas.DownloadQueue.CompleteListene
 
     @Override
     public void onDownloadComplete(String url, final File file) {
+        getTileCache(messagesList.getContext()).commit(getTileKey());
         messagesList.requestRefresh();
     }
 
     @Override
     public void onImageLoaded(ImageSpec spec) {
-        messagesList.requestRefresh();
+        messagesList.requestRefresh(this);
+    }
+    
+    @Override
+    public void onUnbind() {
+        if (spec != null) spec.cancel(this);
+        if (download != null) download.cancel(this);
+    }
+    
+    /** Downloads tile behind visible ones. Decoding waits for bind, tiles are cheap to decode */
+    @Override
+    public boolean onPrefetch() {
+        String tileKey = getTileKey();
+        int size = (int) Tools.getPxFromDp(150, messagesList.getContext());
+        if (Atlas.imageLoader.isCached(tileKey, size, size)) return false;
+        DiskCache tiles = getTileCache(messagesList.getContext());
+        if (tiles.contains(tileKey)) return false;
+        download = Atlas.downloadQueue.schedule(getTileUrl(), tiles.getFile(tileKey), DownloadQueue.PRIORITY_BACKGROUND, this);
+        return true;
+    }
+    
+    @Override
+    public void onPrefetchCancel() {
+        if (download != null) download.cancel(this);
     }
 }
\ No newline at end of file
@@ -117,8 +117,22 @@ public class ImageCell extends Cell implements LayerProgressListener, ImageLoade
             imgHeight = imageSpec.originalHeight;
         }
         
+        int widthToFit;
+        if (cellContainer.getWidth() != 0) {
+            if (debug) Log.w(TAG, "img.onBind() widthToFit from cellContainer: " + cellContainer.getWidth());
+            widthToFit = cellContainer.getWidth();
+        } else {
+            if (debug) Log.w(TAG, "img.onBind() widthToFit from  messagesList:  " + messagesList.getWidth());
+            widthToFit = messagesList.getWidth();
+        }
+        
+        // decode image for the size it is drawn at. Bitmap is rotated when drawn, so its dimensions are not swapped
         MessagePart workingPart = getWorkingPart();
-        Drawable drawable = getDrawable(workingPart);
+        Drawable drawable = null;
+        if (widthToFit > 0) {
+            int[] requiredSize = requiredSize(imgWidth, imgHeight, widthToFit);
+            drawable = getDrawable(workingPart, requiredSize[0], requiredSize[1]);
+        } // else: list is not measured yet, request image at next bind
 
         // still no size known? fallback to bitmap's size
         if ((imgWidth == 0 || imgHeight == 0) && drawable != null) {
@@ -130,38 +144,12 @@ public class ImageCell extends Cell implements LayerProgressListener, ImageLoade
         // calculate appropriate View size. If image dimensions are unknown, use default size 192dp
         int viewWidth  = (int) (imgWidth  != 0 ? imgWidth  : Tools.getPxFromDp(192, imageContainer.getContext()));
         int viewHeight = (int) (imgHeight != 0 ? imgHeight : Tools.getPxFromDp(192, imageContainer.getContext()));
-        if (orientation == ImageCell.ORIENTATION_1_CW_180 || orientation == ImageCell.ORIENTATION_3_CCW_90) {
-             int oldWidth = viewWidth;
-             viewWidth = viewHeight;
-             viewHeight = oldWidth;
-        }
-        
-        if (debug) Log.w(TAG, "img.onBind() image: " + imgWidth + "x" + imgHeight + " into view: " + viewWidth + "x" + viewHeight + ", orientation: " + orientation
+        if (debug) Log.w(TAG, "img.onBind() image: " + imgWidth + "x" + imgHeight + ", orientation: " + orientation
                 + ", container: " + (myMessage ? "my " : "their ") + imageContainer.getWidth() + "x" + imageContainer.getHeight() 
                 + ", cell: " + cellContainer.getWidth() + "x" + cellContainer.getHeight());
-        
-        int widthToFit;
-        if (cellContainer.getWidth() != 0) {
-            if (debug) Log.w(TAG, "img.onBind() widthToFit from cellContainer: " + cellContainer.getWidth());
-            widthToFit = cellContainer.getWidth();
-        } else {
-            if (debug) Log.w(TAG, "img.onBind() widthToFit from  messagesList:  " + messagesList.getWidth());
-            widthToFit = messagesList.getWidth();
-        }
-        
-        if (viewWidth > widthToFit) {
-            int oldWidth  = viewWidth;
-            viewHeight = (int) (1.0 * viewHeight * widthToFit / viewWidth);
-            viewWidth = widthToFit;
-            if (debug) Log.w(TAG, "img.onBind() viewWidth > widthToFit: " + oldWidth + " > " + widthToFit + " -> view: " + viewWidth + "x" + viewHeight);
-        }
-        
-        if (viewHeight > messagesList.getHeight() && messagesList.getHeight() > 0) {
-            int oldHeight = viewHeight;
-            viewWidth = (int)(1.0 * viewWidth * messagesList.getHeight() / viewHeight);
-            viewHeight = messagesList.getHeight();
-            if (debug) Log.w(TAG, "img.onBind() viewHeight > messagesList.height: " + oldHeight + " > " + messagesList.getHeight() + " -> view: " + viewWidth + "x" + viewHeight);
-        }
+        int[] viewSize = viewSize(viewWidth, viewHeight, widthToFit);
+        viewWidth  = viewSize[0];
+        viewHeight = viewSize[1];
         
         if (debug) Log.w(TAG, "img.onBind() image: " + imgWidth + "x" + imgHeight + " set"
                 + "  view: " + viewWidth + "x" + viewHeight + ", h/w: " + (1.0f * viewHeight / viewWidth) 
@@ -219,16 +207,61 @@ public class ImageCell extends Cell implements LayerProgressListener, ImageLoade
     protected MessagePart getWorkingPart() {
         return previewPart != null ? previewPart : fullPart;
     }
+    
+    /** 
+     * @return {width, height} of view to display image of given size: swapped according to orientation 
+     *         and scaled down to fit into <code>widthToFit</code> and list height 
+     */
+    private int[] viewSize(int imgWidth, int imgHeight, int widthToFit) {
+        int viewWidth  = imgWidth;
+        int viewHeight = imgHeight;
+        if (orientation == ImageCell.ORIENTATION_1_CW_180 || orientation == ImageCell.ORIENTATION_3_CCW_90) {
+             viewWidth  = imgHeight;
+             viewHeight = imgWidth;
+        }
+        
+        if (viewWidth > widthToFit) {
+            int oldWidth  = viewWidth;
+            viewHeight = (int) (1.0 * viewHeight * widthToFit / viewWidth);
+            viewWidth = widthToFit;
+            if (debug) Log.w(TAG, "img.viewSize() viewWidth > widthToFit: " + oldWidth + " > " + widthToFit + " -> view: " + viewWidth + "x" + viewHeight);
+        }
+        
+        if (viewHeight > messagesList.getHeight() && messagesList.getHeight() > 0) {
+            int oldHeight = viewHeight;
+            viewWidth = (int)(1.0 * viewWidth * messagesList.getHeight() / viewHeight);
+            viewHeight = messagesList.getHeight();
+            if (debug) Log.w(TAG, "img.viewSize() viewHeight > messagesList.height: " + oldHeight + " > " + messagesList.getHeight() + " -> view: " + viewWidth + "x" + viewHeight);
+        }
+        return new int[] { viewWidth, viewHeight };
+    }
+    
+    /** 
+     * @return {width, height} bitmap should be decoded to, to be drawn in view of {@link #viewSize(int, int, int)}. 
+     *         If image dimensions are unknown - the biggest box image can be displayed in 
+     */
+    protected int[] requiredSize(int imgWidth, int imgHeight, int widthToFit) {
+        int[] viewSize;
+        if (imgWidth == 0 || imgHeight == 0) {
+            viewSize = new int[] { widthToFit, messagesList.getHeight() > 0 ? messagesList.getHeight() : widthToFit };
+        } else {
+            viewSize = viewSize(imgWidth, imgHeight, widthToFit);
+        }
+        // view is swapped, bitmap is not
+        if (orientation == ImageCell.ORIENTATION_1_CW_180 || orientation == ImageCell.ORIENTATION_3_CCW_90) {
+            return new int[] { viewSize[1], viewSize[0] };
+        }
+        return viewSize;
+    }
 
     /** 
+     * @param requiredWidth  - size of bitmap to draw in view, see {@link #requiredSize(int, int, int)}
      * @return drawable to set into imageView. Assumed that it return real drawable finally 
      */
-    protected Drawable getDrawable(MessagePart workingPart) {
-        // TODO: calculate properly with rotation
-        int requiredWidth  = messagesList.getWidth();
-        int requiredHeight = messagesList.getHeight();
-        
-        Bitmap bmp = (Bitmap) Atlas.imageLoader.getImageFromCache(workingPart.getId());
+    protected Drawable getDrawable(MessagePart workingPart, int requiredWidth, int requiredHeight) {
+        Bitmap bmp = (Bitmap) Atlas.imageLoader.getImageFromCache(workingPart.getId(), requiredWidth, requiredHeight);
+        // too big for cache, only the request knows it
+        if (bmp == null && imageSpec != null && imageSpec.id.equals(workingPart.getId()) && imageSpec.image instanceof Bitmap) bmp = (Bitmap) imageSpec.image;
         if (bmp != null) {
             if (debug) Log.i(TAG, "img.onBind() returned from cache! " + bmp.getWidth() + "x" + bmp.getHeight() 
                     + " " + bmp.getByteCount() + " bytes, req: " + requiredWidth + "x" + requiredHeight + " for " + workingPart.getId());
@@ -236,7 +269,7 @@ public class ImageCell extends Cell implements LayerProgressListener, ImageLoade
         } else if (workingPart.isContentReady()){
             final Uri id = workingPart.getId();
             final MessagePartStreamProvider streamProvider = new MessagePartStreamProvider(workingPart);
-            imageSpec = Atlas.imageLoader.requestImage(id, streamProvider, requiredWidth, requiredHeight, false, this);
+            imageSpec = Atlas.imageLoader.requestImage(id, streamProvider, requiredWidth, requiredHeight, false, ImageLoader.PRIORITY_VISIBLE, clusterItemId, this);
         }
         return null;
     }
@@ -256,12 +289,42 @@ public class ImageCell extends Cell implements LayerProgressListener, ImageLoade
     }
     public void onProgressComplete(MessagePart part, Operation operation) {
         downloadProgressBytes = -1;
+        Atlas.imageLoader.onContentReady(part.getId());
         messagesList.requestRefresh();
     }
     
     @Override
     public void onImageLoaded(ImageSpec spec) {
-        messagesList.requestRefresh();
+        messagesList.requestRefresh(this);
+    }
+    
+    @Override
+    public void onUnbind() {
+        if (imageSpec != null) imageSpec.cancel(this);
+    }
+    
+    /** Decodes working part in background. Downloads preview if needed, but never the full part */
+    @Override
+    public boolean onPrefetch() {
+        if (messagesList.getWidth() == 0) return false;
+        MessagePart workingPart = getWorkingPart();
+        // cell is not laid out yet, list width is the widest it could be. Bind finds this image good enough
+        int[] requiredSize = requiredSize(declaredWidth, declaredHeight, messagesList.getWidth());
+        int requiredWidth  = requiredSize[0];
+        int requiredHeight = requiredSize[1];
+        if (Atlas.imageLoader.isCached(workingPart.getId(), requiredWidth, requiredHeight)) return false;
+        if (!workingPart.isContentReady()) {
+            if (workingPart != previewPart) return false;
+            if (downloadProgressBytes == -1) workingPart.download(this);
+        }
+        imageSpec = Atlas.imageLoader.requestImage(workingPart.getId(), new MessagePartStreamProvider(workingPart)
+                , requiredWidth, requiredHeight, false, ImageLoader.PRIORITY_PREFETCH, clusterItemId, this);
+        return true;
+    }
+    
+    @Override
+    public void onPrefetchCancel() {
+        if (imageSpec != null) imageSpec.cancel(this);
     }
 
     @Override
@@ -0,0 +1,418 @@
+/*
+ * Copyright (c) 2015 Layer. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.layer.atlas;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Parsing, LZW decoding and frame composition of {@link GIFImage}. Runs on JVM: nothing here
+ * touches Bitmap, frames are checked on {@link GIFImage.Renderer#canvas}
+ */
+public class GIFImageTest {
+
+    private static final int BLACK = 0xFF000000;
+    private static final int RED   = 0xFFFF0000;
+    private static final int GREEN = 0xFF00FF00;
+    private static final int BLUE  = 0xFF0000FF;
+    private static final int[] PALETTE = { BLACK, RED, GREEN, BLUE };
+
+    @Test
+    public void parsesFramesAndControlExtensions() throws IOException {
+        byte[] data = new GIFBuilder(6, 4, PALETTE)
+                .frame(0, 0, 6, 4, fill(24, 1), false, -1, 0, 50)
+                .frame(2, 1, 3, 2, fill(6, 2), false, 3, 2, 0)     // 0 delay is played at default speed
+                .build();
+        GIFImage gif = GIFImage.parse(data);
+        assertEquals(6, gif.width);
+        assertEquals(4, gif.height);
+        assertEquals(2, gif.getFrameCount());
+        assertEquals(50, gif.getDelay(0));
+        assertEquals(100, gif.getDelay(1));
+
+        GIFImage.Frame second = gif.getFrame(1);
+        assertEquals(2, second.x);
+        assertEquals(1, second.y);
+        assertEquals(3, second.width);
+        assertEquals(2, second.height);
+        assertEquals(3, second.transparentIndex);
+        assertEquals(2, second.dispose);
+        assertEquals(-1, gif.getFrame(0).transparentIndex);
+    }
+
+    @Test
+    public void readsStreamOfAnyLengthHint() throws IOException {
+        byte[] data = new GIFBuilder(3, 3, PALETTE).frame(0, 0, 3, 3, fill(9, 2), false, -1, 0, 100).build();
+        for (int length : new int[] { -1, 1, data.length - 1, data.length, data.length * 3 }) {
+            GIFImage gif = GIFImage.read(new ByteArrayInputStream(data), length);
+            assertEquals("length: " + length, 1, gif.getFrameCount());
+        }
+    }
+
+    @Test
+    public void decodesIndices() throws IOException {
+        Random random = new Random(42);
+        byte[] pixels = new byte[37 * 23];
+        for (int i = 0; i < pixels.length; i++) pixels[i] = (byte) random.nextInt(PALETTE.length);
+        GIFImage gif = GIFImage.parse(new GIFBuilder(37, 23, PALETTE).frame(0, 0, 37, 23, pixels, false, -1, 0, 100).build());
+
+        GIFImage.Renderer renderer = new GIFImage.Renderer(gif);
+        renderer.decodeIndices(gif.getFrame(0));
+        assertArrayEquals(pixels, Arrays.copyOf(renderer.indices, pixels.length));
+    }
+
+    @Test
+    public void decodesIndicesWithGrowingCodeSize() throws IOException {
+        // 256 colors, so codes of a long frame pass through 9..12 bits and dictionary resets
+        int[] palette = new int[256];
+        for (int i = 0; i < palette.length; i++) palette[i] = 0xFF000000 | i;
+        Random random = new Random(7);
+        byte[] pixels = new byte[100 * 80];
+        for (int i = 0; i < pixels.length; i++) pixels[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(256) : i % 3);
+        GIFImage gif = GIFImage.parse(new GIFBuilder(100, 80, palette).compressed().frame(0, 0, 100, 80, pixels, false, -1, 0, 100).build());
+
+        GIFImage.Renderer renderer = new GIFImage.Renderer(gif);
+        renderer.decodeIndices(gif.getFrame(0));
+        assertArrayEquals(pixels, Arrays.copyOf(renderer.indices, pixels.length));
+    }
+
+    @Test
+    public void composesInterlacedFrameInDisplayOrder() throws IOException {
+        int width = 3, height = 11;     // not a multiple of 8, every pass is incomplete
+        byte[] pixels = new byte[width * height];
+        for (int row = 0; row < height; row++) {
+            Arrays.fill(pixels, row * width, (row + 1) * width, (byte) (row % PALETTE.length));
+        }
+        GIFImage gif = GIFImage.parse(new GIFBuilder(width, height, PALETTE).frame(0, 0, width, height, pixels, true, -1, 0, 100).build());
+        assertTrue(gif.getFrame(0).interlaced);
+
+        GIFImage.Renderer renderer = new GIFImage.Renderer(gif);
+        renderer.compose();
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals("row: " + row, PALETTE[row % PALETTE.length], renderer.canvas[row * width + x]);
+            }
+        }
+    }
+
+    @Test
+    public void composesShortInterlacedFramesSkippingEmptyPasses() throws IOException {
+        int width = 2, canvasHeight = 12;
+        for (int height = 1; height <= 8; height++) {
+            byte[] pixels = new byte[width * height];
+            for (int row = 0; row < height; row++) {
+                Arrays.fill(pixels, row * width, (row + 1) * width, (byte) (1 + row % 3));
+            }
+            // frame is placed inside bigger canvas, so rows written past its bottom show up
+            GIFImage gif = GIFImage.parse(new GIFBuilder(width, canvasHeight, PALETTE).frame(0, 1, width, height, pixels, true, -1, 0, 100).build());
+            GIFImage.Renderer renderer = new GIFImage.Renderer(gif);
+            renderer.compose();
+            for (int y = 0; y < canvasHeight; y++) {
+                int row = y - 1;
+                int expected = row >= 0 && row < height ? PALETTE[1 + row % 3] : 0;
+                for (int x = 0; x < width; x++) {
+                    assertEquals("height: " + height + ", y: " + y, expected, renderer.canvas[y * width + x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void keepsPreviousFrameUnderTransparentPixels() throws IOException {
+        byte[] second = { 3, 2, 3,
+                          2, 3, 2 };
+        GIFImage gif = GIFImage.parse(new GIFBuilder(4, 3, PALETTE)
+                .frame(0, 0, 4, 3, fill(12, 1), false, -1, 0, 100)
+                .frame(1, 1, 3, 2, second, false, 3, 0, 100)
+                .build());
+        GIFImage.Renderer renderer = new GIFImage.Renderer(gif);
+        assertEquals(0, renderer.compose());
+        assertEquals(1, renderer.compose());
+        assertArrayEquals(new int[] {
+                RED, RED, RED,   RED,
+                RED, RED, GREEN, RED,
+                RED, GREEN, RED, GREEN }, renderer.canvas);
+    }
+
+    @Test
+    public void disposesToBackgroundAndToPrevious() throws IOException {
+        GIFImage gif = GIFImage.parse(new GIFBuilder(2, 2, PALETTE)
+                .frame(0, 0, 2, 2, fill(4, 1), false, -1, 0, 100)
+                .frame(0, 0, 1, 1, fill(1, 2), false, -1, 3, 100)     // restored to previous afterwards
+                .frame(1, 0, 1, 1, fill(1, 3), false, -1, 2, 100)     // cleared to transparent afterwards
+                .frame(0, 1, 1, 1, fill(1, 0), false, -1, 0, 100)
+                .build());
+        GIFImage.Renderer renderer = new GIFImage.Renderer(gif);
+        renderer.compose();
+        renderer.compose();
+        assertArrayEquals(new int[] { GREEN, RED, RED, RED }, renderer.canvas);
+        renderer.compose();
+        assertArrayEquals(new int[] { RED, BLUE, RED, RED }, renderer.canvas);
+        renderer.compose();
+        assertArrayEquals(new int[] { RED, 0, BLACK, RED }, renderer.canvas);
+        assertEquals(0, renderer.compose());    // loops, starting from clear canvas
+        assertArrayEquals(new int[] { RED, RED, RED, RED }, renderer.canvas);
+    }
+
+    @Test
+    public void composesSampledCanvasFromEveryOtherPixel() throws IOException {
+        int width = 9, height = 7;
+        Random random = new Random(3);
+        byte[] first = new byte[width * height];
+        for (int i = 0; i < first.length; i++) first[i] = (byte) random.nextInt(PALETTE.length);
+        byte[] second = new byte[5 * 4];
+        for (int i = 0; i < second.length; i++) second[i] = (byte) random.nextInt(PALETTE.length);
+        GIFImage original = GIFImage.parse(new GIFBuilder(width, height, PALETTE)
+                .frame(0, 0, width, height, first, false, -1, 2, 100)
+                .frame(3, 1, 5, 4, second, true, 1, 0, 100)
+                .build());
+
+        GIFImage.Renderer full = new GIFImage.Renderer(original);
+        GIFImage.Renderer sampled = new GIFImage.Renderer(original.sampled(2));
+        for (int frame = 0; frame < 2; frame++) {
+            full.compose();
+            sampled.compose();
+            assertEquals(4 * 3, sampled.canvas.length);
+            for (int y = 0; y < 3; y++) {
+                for (int x = 0; x < 4; x++) {
+                    assertEquals("frame: " + frame + ", " + x + "x" + y, full.canvas[y * 2 * width + x * 2], sampled.canvas[y * 4 + x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void leavesMissingPixelsOfTruncatedFrameZero() throws IOException {
+        byte[] pixels = new byte[20 * 20];
+        for (int i = 0; i < pixels.length; i++) pixels[i] = (byte) (1 + i % 3);
+        byte[] data = new GIFBuilder(20, 20, PALETTE).frame(0, 0, 20, 20, pixels, false, -1, 0, 100).build();
+        byte[] truncated = Arrays.copyOf(data, data.length / 2);
+
+        GIFImage gif = GIFImage.parse(truncated);
+        assertEquals(1, gif.getFrameCount());
+        GIFImage.Renderer renderer = new GIFImage.Renderer(gif);
+        renderer.decodeIndices(gif.getFrame(0));
+        int decoded = 0;
+        while (decoded < pixels.length && renderer.indices[decoded] != 0) decoded++;
+        assertTrue("decoded: " + decoded, decoded > 0 && decoded < pixels.length);
+        assertArrayEquals(Arrays.copyOf(pixels, decoded), Arrays.copyOf(renderer.indices, decoded));
+        for (int i = decoded; i < pixels.length; i++) assertEquals(0, renderer.indices[i]);
+        renderer.compose();     // doesn't throw
+    }
+
+    @Test
+    public void keepsFramesBeforeGarbage() throws IOException {
+        byte[] data = new GIFBuilder(2, 2, PALETTE).frame(0, 0, 2, 2, fill(4, 1), false, -1, 0, 100).build();
+        data[data.length - 1] = 0x55;   // trailer replaced by unknown block
+        assertEquals(1, GIFImage.parse(data).getFrameCount());
+    }
+
+    @Test
+    public void rejectsBrokenGIFs() {
+        byte[] data = new GIFBuilder(2, 2, PALETTE).frame(0, 0, 2, 2, fill(4, 1), false, -1, 0, 100).build();
+        assertParseFails("not a GIF", "PNG89a".getBytes());
+        assertParseFails("cut in header", Arrays.copyOf(data, 10));
+        assertParseFails("cut in color table", Arrays.copyOf(data, 16));
+        assertParseFails("cut in image descriptor", Arrays.copyOf(data, 13 + 12 + 8 + 5));   // header, colors, control extension
+        byte[] noSize = data.clone();
+        noSize[6] = 0;
+        noSize[7] = 0;
+        assertParseFails("zero width", noSize);
+    }
+
+    private static void assertParseFails(String message, byte[] data) {
+        try {
+            GIFImage.parse(data);
+            fail(message + ": IOException expected");
+        } catch (IOException expected) {
+            assertFalse(expected.getMessage().isEmpty());
+        }
+    }
+
+    private static byte[] fill(int length, int index) {
+        byte[] pixels = new byte[length];
+        Arrays.fill(pixels, (byte) index);
+        return pixels;
+    }
+
+    /** Writes GIF89a with global color table. Frames are LZW-encoded, rows are given in display order */
+    private static class GIFBuilder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final int minCodeSize;
+        private boolean compressed;
+
+        GIFBuilder(int width, int height, int[] palette) {
+            int bits = 1;
+            while ((1 << bits) < palette.length) bits++;
+            minCodeSize = Math.max(2, bits);
+            out.write('G'); out.write('I'); out.write('F'); out.write('8'); out.write('9'); out.write('a');
+            writeShort(width);
+            writeShort(height);
+            out.write(0x80 | (bits - 1));   // global color table of 2^bits colors
+            out.write(0);
+            out.write(0);
+            for (int i = 0; i < (1 << bits); i++) {
+                int color = i < palette.length ? palette[i] : 0;
+                out.write(color >> 16 & 0xFF);
+                out.write(color >> 8 & 0xFF);
+                out.write(color & 0xFF);
+            }
+        }
+
+        /** encodes with growing dictionary instead of resetting it after every few pixels */
+        GIFBuilder compressed() {
+            compressed = true;
+            return this;
+        }
+
+        GIFBuilder frame(int x, int y, int width, int height, byte[] pixels, boolean interlaced, int transparentIndex, int dispose, int delayMs) {
+            out.write(0x21);    // graphic control extension
+            out.write(0xF9);
+            out.write(4);
+            out.write(dispose << 2 | (transparentIndex >= 0 ? 1 : 0));
+            writeShort(delayMs / 10);
+            out.write(Math.max(0, transparentIndex));
+            out.write(0);
+
+            out.write(0x2C);
+            writeShort(x);
+            writeShort(y);
+            writeShort(width);
+            writeShort(height);
+            out.write(interlaced ? 0x40 : 0);
+            out.write(minCodeSize);
+            byte[] lzw = compressed ? lzw(stored(pixels, width, height, interlaced)) : lzwUncompressed(stored(pixels, width, height, interlaced));
+            for (int pos = 0; pos < lzw.length; pos += 255) {
+                int size = Math.min(255, lzw.length - pos);
+                out.write(size);
+                out.write(lzw, pos, size);
+            }
+            out.write(0);
+            return this;
+        }
+
+        byte[] build() {
+            out.write(0x3B);
+            return out.toByteArray();
+        }
+
+        /** @return rows in the order they are stored: pass by pass if interlaced */
+        private static byte[] stored(byte[] pixels, int width, int height, boolean interlaced) {
+            if (!interlaced) return pixels;
+            byte[] result = new byte[pixels.length];
+            int stored = 0;
+            int[][] passes = { { 0, 8 }, { 4, 8 }, { 2, 4 }, { 1, 2 } };
+            for (int[] pass : passes) {
+                for (int row = pass[0]; row < height; row += pass[1]) {
+                    System.arraycopy(pixels, row * width, result, stored++ * width, width);
+                }
+            }
+            return result;
+        }
+
+        /** every code is a single pixel. Clear code comes before code size would have to grow */
+        private byte[] lzwUncompressed(byte[] pixels) {
+            BitWriter bits = new BitWriter();
+            int clear = 1 << minCodeSize;
+            int codeSize = minCodeSize + 1;
+            int maxRun = clear - 2;
+            for (int i = 0; i < pixels.length; i++) {
+                if (i % maxRun == 0) bits.write(clear, codeSize);
+                bits.write(pixels[i] & 0xFF, codeSize);
+            }
+            bits.write(clear + 1, codeSize);
+            return bits.toByteArray();
+        }
+
+        /** classic LZW with dictionary reset when it is full */
+        private byte[] lzw(byte[] pixels) {
+            BitWriter bits = new BitWriter();
+            int clear = 1 << minCodeSize;
+            HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+            int codeSize = minCodeSize + 1;
+            int next = clear + 2;
+            bits.write(clear, codeSize);
+            String current = "";
+            for (byte pixel : pixels) {
+                String extended = current + (char) (pixel & 0xFF);
+                if (extended.length() == 1 || dictionary.containsKey(extended)) {
+                    current = extended;
+                    continue;
+                }
+                bits.write(code(current, dictionary), codeSize);
+                if (next < 4096) {
+                    dictionary.put(extended, next++);
+                    if (next > (1 << codeSize) && codeSize < 12) codeSize++;
+                } else {
+                    bits.write(clear, codeSize);
+                    dictionary.clear();
+                    codeSize = minCodeSize + 1;
+                    next = clear + 2;
+                }
+                current = String.valueOf((char) (pixel & 0xFF));
+            }
+            if (current.length() > 0) bits.write(code(current, dictionary), codeSize);
+            bits.write(clear + 1, codeSize);
+            return bits.toByteArray();
+        }
+
+        private static int code(String string, Map<String, Integer> dictionary) {
+            return string.length() == 1 ? string.charAt(0) : dictionary.get(string);
+        }
+
+        private void writeShort(int value) {
+            out.write(value & 0xFF);
+            out.write(value >> 8 & 0xFF);
+        }
+    }
+
+    /** packs codes least significant bit first, as GIF does */
+    private static class BitWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int buffer;
+        private int count;
+
+        void write(int code, int size) {
+            buffer |= code << count;
+            count += size;
+            while (count >= 8) {
+                out.write(buffer & 0xFF);
+                buffer >>>= 8;
+                count -= 8;
+            }
+        }
+
+        byte[] toByteArray() {
+            if (count > 0) out.write(buffer & 0xFF);
+            buffer = 0;
+            count = 0;
+            return out.toByteArray();
+        }
+    }
+}